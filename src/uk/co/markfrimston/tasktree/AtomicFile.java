@@ -0,0 +1,142 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * Replaces a file without ever leaving a partly written version in its place.
+ * New content goes to a temporary file which is forced to disk and then renamed
+ * over the original, whose previous version is kept as a backup generation to
+ * fall back on.
+ */
+public class AtomicFile
+{
+	protected File file;
+	protected File tempFile;
+	protected File backupFile;
+	protected boolean keepBackup;
+	
+	public AtomicFile(File file)
+	{
+		this(file, true);
+	}
+	
+	public AtomicFile(File file, boolean keepBackup)
+	{
+		this.file = file;
+		this.keepBackup = keepBackup;
+		this.tempFile = new File(file.getPath()+".tmp");
+		this.backupFile = new File(file.getPath()+".bak");
+	}
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	public File getBackupFile()
+	{
+		return backupFile;
+	}
+	
+	public boolean exists()
+	{
+		return file.exists() || backupFile.exists();
+	}
+	
+	// files to try reading, newest generation first
+	public File[] getGenerations()
+	{
+		return new File[]{ file, backupFile };
+	}
+	
+	public FileOutputStream startWrite() throws IOException
+	{
+		return new FileOutputStream(tempFile);
+	}
+	
+	public void finishWrite(FileOutputStream stream) throws IOException
+	{
+		try
+		{
+			stream.flush();
+			stream.getFD().sync();
+		}
+		finally
+		{
+			stream.close();
+		}
+		commit(tempFile);
+	}
+	
+	public void failWrite(FileOutputStream stream)
+	{
+		try{
+			stream.close();
+		}catch(IOException e){}
+		tempFile.delete();
+	}
+	
+	// installs a complete, synced file as the new version
+	public void commit(File source) throws IOException
+	{
+		if(file.exists())
+		{
+			// windows won't rename over an existing file, so clear the way
+			if(keepBackup)
+			{
+				backupFile.delete();
+				if(!file.renameTo(backupFile)){
+					throw new IOException("Failed to rename "+file+" to "+backupFile);
+				}
+			}
+			else if(source.renameTo(file))
+			{
+				return;
+			}
+			else if(!file.delete())
+			{
+				throw new IOException("Failed to delete "+file);
+			}
+		}
+		if(!source.renameTo(file)){
+			throw new IOException("Failed to rename "+source+" to "+file);
+		}
+	}
+	
+	// moves a damaged current version out of the way so that the backup it fell
+	// back on isn't replaced by it on the next write
+	public void setAsideCurrent()
+	{
+		File corruptFile = new File(file.getPath()+".corrupt");
+		corruptFile.delete();
+		file.renameTo(corruptFile);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package uk.co.markfrimston.tasktree;
+
+/*
+ * Background thread which decides when to fold the journal into a new tasks.xml
+ * checkpoint, according to the policy configured on the task tree.
+ */
+public class CheckpointScheduler extends Thread
+{
+	protected static final long POLL_MILLIS = 1000;
+
+	protected TaskTree taskTree;
+	protected boolean stop = false;
+	protected boolean requested = false;
+	protected Exception lastError;
+
+	public CheckpointScheduler(TaskTree taskTree)
+	{
+		super("Checkpoint scheduler");
+		this.taskTree = taskTree;
+		setDaemon(true);
+	}
+
+	public synchronized void requestCheckpoint()
+	{
+		requested = true;
+		notifyAll();
+	}
+
+	// wakes the scheduler to re-check the policy after an edit
+	public synchronized void poke()
+	{
+		notifyAll();
+	}
+
+	public synchronized void requestStop()
+	{
+		stop = true;
+		notifyAll();
+	}
+
+	public synchronized Exception getLastError()
+	{
+		return lastError;
+	}
+
+	public void run()
+	{
+		while(true)
+		{
+			boolean force;
+			synchronized(this)
+			{
+				if(!stop && !requested)
+				{
+					try{
+						wait(POLL_MILLIS);
+					}catch(InterruptedException e){}
+				}
+				if(stop){
+					return;
+				}
+				force = requested;
+				requested = false;
+			}
+
+			try
+			{
+				if(force || isCheckpointDue()){
+					taskTree.compactJournal();
+				}
+			}
+			catch(Exception e)
+			{
+				synchronized(this){
+					lastError = e;
+				}
+			}
+		}
+	}
+
+	protected boolean isCheckpointDue() throws Exception
+	{
+		TaskJournal journal = taskTree.getJournal();
+		if(journal==null){
+			return false;
+		}
+		int records = journal.getRecordCount();
+		if(records==0){
+			return false;
+		}
+		long idleMillis = System.currentTimeMillis() - journal.getLastAppendTime();
+		return records >= taskTree.getCheckpointRecords()
+			|| journal.getLength() >= taskTree.getCheckpointBytes()
+			|| taskTree.getEstimatedReplayMillis() >= taskTree.getCheckpointReplayMillis()
+			|| idleMillis >= taskTree.getCheckpointIdleSeconds()*1000L;
+	}
+}
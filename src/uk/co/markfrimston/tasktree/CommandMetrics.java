@@ -0,0 +1,93 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+/*
+ * Running totals for the commands run by TaskTree: how many, how long they 
+ * waited in the event queue and how long they took to run.
+ */
+public class CommandMetrics
+{
+	protected static final double NANOS_PER_MILLI = 1000000.0;
+
+	protected long startTime = System.nanoTime();
+	protected long count = 0;
+	protected long totalWaitNanos = 0;
+	protected long totalRunNanos = 0;
+	protected long maxLatencyNanos = 0;
+
+	public synchronized void record(long waitNanos, long runNanos)
+	{
+		count ++;
+		totalWaitNanos += waitNanos;
+		totalRunNanos += runNanos;
+		maxLatencyNanos = Math.max(maxLatencyNanos, waitNanos+runNanos);
+	}
+
+	public synchronized long getCount()
+	{
+		return count;
+	}
+
+	public synchronized double getMeanWaitMillis()
+	{
+		return count==0 ? 0.0 : totalWaitNanos/NANOS_PER_MILLI/count;
+	}
+
+	public synchronized double getMeanRunMillis()
+	{
+		return count==0 ? 0.0 : totalRunNanos/NANOS_PER_MILLI/count;
+	}
+
+	// the longest time from submitting a command to it finishing
+	public synchronized double getMaxLatencyMillis()
+	{
+		return maxLatencyNanos/NANOS_PER_MILLI;
+	}
+
+	public synchronized double getCommandsPerSecond()
+	{
+		long elapsed = System.nanoTime() - startTime;
+		return elapsed<=0 ? 0.0 : count*1000.0*NANOS_PER_MILLI/elapsed;
+	}
+
+	public synchronized void reset()
+	{
+		startTime = System.nanoTime();
+		count = 0;
+		totalWaitNanos = 0;
+		totalRunNanos = 0;
+		maxLatencyNanos = 0;
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("%d commands, %.1f/s, wait %.3fms, run %.3fms, max %.3fms", 
+				count, getCommandsPerSecond(), getMeanWaitMillis(), getMeanRunMillis(), 
+				getMaxLatencyMillis());
+	}
+}
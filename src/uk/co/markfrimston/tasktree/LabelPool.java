@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/*
+ * Canonicalises task labels so that every task with the same label shares a 
+ * single String. Labels are held weakly, so ones no longer used by any task 
+ * can still be collected. Keeps counts of how often a label was already 
+ * present and roughly how much memory that saved.
+ */
+public class LabelPool
+{
+	protected Map<String,WeakReference<String>> labels = new WeakHashMap<String,WeakReference<String>>();
+	protected long lookups = 0L;
+	protected long hits = 0L;
+	protected long bytesSaved = 0L;
+	
+	public synchronized String intern(String label)
+	{
+		if(label==null){
+			return null;
+		}
+		lookups ++;
+		WeakReference<String> ref = labels.get(label);
+		String canonical = ref!=null ? ref.get() : null;
+		if(canonical!=null)
+		{
+			if(canonical!=label)
+			{
+				hits ++;
+				bytesSaved += estimateSize(label);
+			}
+			return canonical;
+		}
+		labels.put(label, new WeakReference<String>(label));
+		return label;
+	}
+	
+	public synchronized int size()
+	{
+		return labels.size();
+	}
+	
+	public synchronized long getLookups()
+	{
+		return lookups;
+	}
+	
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+	
+	public synchronized double getHitRate()
+	{
+		return lookups==0 ? 0.0 : (double)hits/lookups;
+	}
+	
+	// approximate heap taken by the duplicate labels that were dropped in favour
+	// of pooled ones
+	public synchronized long getBytesSaved()
+	{
+		return bytesSaved;
+	}
+	
+	public synchronized String toString()
+	{
+		return "LabelPool[labels="+labels.size()+", lookups="+lookups
+			+", hit rate="+Math.round(getHitRate()*100)+"%, bytes saved="+bytesSaved+"]";
+	}
+	
+	// a String object plus its character array, with 8 byte alignment
+	protected static long estimateSize(String label)
+	{
+		return 24 + ((16 + 2L*label.length() + 7) & ~7L);
+	}
+}
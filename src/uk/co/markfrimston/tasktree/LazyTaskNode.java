@@ -0,0 +1,122 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.util.Enumeration;
+
+import javax.swing.tree.MutableTreeNode;
+import javax.swing.tree.TreeNode;
+
+/*
+ * Task node read from a binary snapshot, whose children are only decoded when
+ * something walks into them. Until then it just knows how many children it has,
+ * so collapsed branches cost one node each.
+ */
+public class LazyTaskNode extends TaskNode
+{
+	private static final long serialVersionUID = 1L;
+	
+	protected TaskSnapshot snapshot;
+	protected int record;
+	
+	public LazyTaskNode(TaskSnapshot snapshot, int record)
+	{
+		super(snapshot.getLabel(record));
+		setId(snapshot.getId(record));
+		this.snapshot = snapshot;
+		this.record = record;
+	}
+	
+	public boolean isMaterialised()
+	{
+		return snapshot==null;
+	}
+	
+	public TaskSnapshot getSnapshot()
+	{
+		return snapshot;
+	}
+	
+	public int getRecord()
+	{
+		return record;
+	}
+	
+	protected void materialise()
+	{
+		if(snapshot!=null)
+		{
+			TaskSnapshot snapshot = this.snapshot;
+			this.snapshot = null;
+			snapshot.addChildren(this, record);
+		}
+	}
+	
+	public int getChildCount()
+	{
+		if(snapshot!=null){
+			return snapshot.getChildCount(record);
+		}
+		return super.getChildCount();
+	}
+	
+	public TreeNode getChildAt(int index)
+	{
+		materialise();
+		return super.getChildAt(index);
+	}
+	
+	public Enumeration<TreeNode> children()
+	{
+		materialise();
+		return super.children();
+	}
+	
+	public TreeNode getFirstChild()
+	{
+		materialise();
+		return super.getFirstChild();
+	}
+	
+	public TreeNode getLastChild()
+	{
+		materialise();
+		return super.getLastChild();
+	}
+	
+	public void insert(MutableTreeNode newChild, int childIndex)
+	{
+		materialise();
+		super.insert(newChild, childIndex);
+	}
+	
+	public void remove(int childIndex)
+	{
+		materialise();
+		super.remove(childIndex);
+	}
+}
@@ -50,24 +50,42 @@ import org.apache.http.impl.client.*;
 
 import uk.co.markfrimston.utils.*;
 
-public class Main extends JFrame implements MergeConfirmer
+public class Main extends JFrame implements MergeConfirmer, SaveErrorHandler, SyncListener
 {
 	protected TaskTree taskTree;
 	
-	protected JTree tree;
+	protected TaskJTree tree;
+	protected TaskRenderCache renderCache;
+	protected Icon bulletIcon;
 	protected JTextArea quickIn;
 	protected JPopupMenu popup;
 	protected JButton syncButton;
+	protected SyncExecutor syncExecutor;
+	protected java.util.List<long[]> expandedBeforeSync;
 	
 	public Main(TaskTree taskTree)
 	{
 		super();
 		
 		this.taskTree = taskTree;
+		this.syncExecutor = new SyncExecutor(taskTree);
 		
 		this.setTitle("Task Tree");
 		this.setSize(new Dimension(300,500));
 		this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		this.addWindowListener(new WindowAdapter(){
+			public void windowClosing(WindowEvent e)
+			{
+				// write out pending edits before EXIT_ON_CLOSE ends the process
+				try{
+					Main.this.taskTree.saveExpandedState(tree.getExpandedNodes());
+					Main.this.taskTree.flush();
+				}catch(Exception ex){
+					error(ex.getMessage());
+				}
+			}
+		});
+		this.taskTree.setSaveErrorHandler(this);
 		
 		JPanel quickInPanel = new JPanel(new BorderLayout());
 		this.quickIn = new JTextArea();
@@ -97,34 +115,35 @@ public class Main extends JFrame implements MergeConfirmer
 		this.syncButton.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e)
 			{
-				new SyncThread(Main.this).start();
+				if(syncExecutor.isRunning())
+				{
+					syncExecutor.cancel();
+					syncButton.setEnabled(false);
+				}
+				else
+				{
+					synchronise();
+				}
 			}
 		});
 		quickInPanel.add(this.syncButton, BorderLayout.EAST);
 		this.getContentPane().add(quickInPanel, BorderLayout.NORTH);
 		
-		this.tree = new JTree(taskTree.getTreeModel());
+		this.tree = new TaskJTree(taskTree.getTreeModel());
+		// listening after the tree means the cache hears about changes first
+		this.renderCache = new TaskRenderCache();
+		taskTree.getTreeModel().addTreeModelListener(renderCache);
 		DefaultTreeCellRenderer renderer = new DefaultTreeCellRenderer(){
 			public Component getTreeCellRendererComponent(JTree tree,
 					Object value, boolean selected, boolean expanded, boolean leaf,
 					int row, boolean hasFocus) 
 			{
-				DefaultMutableTreeNode node = (DefaultMutableTreeNode)value;
-				Object newVal = htmlFilter(String.valueOf(node.getUserObject()));
-				if(node.getChildCount()>0 && !tree.isExpanded(new TreePath(node.getPath())))
-				{
-					DefaultMutableTreeNode firstLeaf = (DefaultMutableTreeNode)node.getFirstLeaf();
-					newVal = htmlFilter(String.valueOf(node.getUserObject()))
-						+" <span style='color:silver;font-style:italic'>"
-							+"("+String.valueOf(firstLeaf.getUserObject())+")</span>";
-				}
-				newVal = "<html>"+newVal+"</html>";
-				
+				String newVal = renderCache.getText((DefaultMutableTreeNode)value, expanded);
 				return super.getTreeCellRendererComponent(tree, newVal, selected, 
 						expanded, leaf, row, hasFocus);
 			}			
 		};
-		ImageIcon bulletIcon = new ImageIcon(Main.class.getResource("bullet.gif"));
+		this.bulletIcon = new ImageIcon(Main.class.getResource("bullet.gif"));
 		renderer.setLeafIcon(bulletIcon);
 		renderer.setOpenIcon(bulletIcon);
 		renderer.setClosedIcon(bulletIcon);
@@ -277,8 +296,7 @@ public class Main extends JFrame implements MergeConfirmer
 				String newText = prompt((String)selected.getUserObject());
 				if(newText!=null && newText.length()>0)
 				{			
-					selected.setUserObject(newText);
-					Main.this.taskTree.getTreeModel().reload(selected);
+					Main.this.taskTree.renameTask(selected, newText);
 					try{
 						Main.this.taskTree.changesMade();
 					}catch(Exception ex){
@@ -315,6 +333,9 @@ public class Main extends JFrame implements MergeConfirmer
 		try
 		{
 			this.taskTree.loadConfig();
+			if(this.taskTree.getLargeTreeView()){
+				tree.setLargeTreeView(new TaskCellPainter(renderCache, bulletIcon));
+			}
 		}
 		catch(Exception e)
 		{
@@ -328,12 +349,8 @@ public class Main extends JFrame implements MergeConfirmer
 		{
 			this.taskTree.load();
 			
-			// make top level tasks visible
-			for(int i=0; i<this.taskTree.getRoot().getChildCount(); i++)
-			{
-				tree.makeVisible(new TreePath(
-						((DefaultMutableTreeNode)this.taskTree.getRoot().getChildAt(i)).getPath()));
-			}
+			// top level tasks are always visible, along with whatever was open last time
+			tree.setExpandedNodes(this.taskTree.loadExpandedState());
 		}
 		catch(Exception e)
 		{
@@ -346,15 +363,6 @@ public class Main extends JFrame implements MergeConfirmer
 		taskTree.moveTask(node, parent, childPos);		
 	}
 	
-	protected String htmlFilter(String input)
-	{
-		return input
-			.replaceAll("&","&amp;")
-			.replaceAll("<","&lt;")
-			.replaceAll(">", "&gt;")
-			.replaceAll("\"", "&quot;");
-	}
-	
 	protected DefaultMutableTreeNode getSelectedNode()
 	{
 		int[] selected = tree.getSelectionRows();
@@ -413,55 +421,86 @@ public class Main extends JFrame implements MergeConfirmer
 		JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE);
 	}
 	
-	public static class SyncThread extends Thread
+	@Override
+	public void saveFailed(final Exception e)
 	{
-		protected Main main;
-		
-		public SyncThread(Main main){
-			this.main = main;
-		}
-		
-		public void run()
-		{			
-			main.synchronise();
-		}
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run()
+			{
+				error(e.getMessage());
+			}
+		});
 	}
 	
 	protected void synchronise()
 	{
-		try
-		{
-			syncButton.setEnabled(false);
-			
-			taskTree.synchronise(this);	
-			
-			// make top level tasks visible
-			for(int i=0; i<this.taskTree.getRoot().getChildCount(); i++)
-			{
-				tree.makeVisible(new TreePath(
-						((DefaultMutableTreeNode)this.taskTree.getRoot().getChildAt(i)).getPath()));
-			}
+		// tasks the sync moves are collapsed in the view, so remember expanded 
+		// tasks by id
+		expandedBeforeSync = taskTree.getTaskPaths(tree.getExpandedNodes());
+		if(syncExecutor.start(this, this)){
+			syncButton.setText("Cancel");
 		}
-		catch(Exception e)
-		{
-			error("Failed to synchronise: "+e.getClass().getName()+" - "+e.getMessage());
+	}
+	
+	@Override
+	public void syncProgress(String stage)
+	{
+		setTitle("Task Tree - "+stage+"...");
+	}
+	
+	@Override
+	public void syncFinished(Exception error)
+	{
+		endSync();
+		if(error!=null){
+			error("Failed to synchronise: "+error.getClass().getName()+" - "+error.getMessage());
 		}
-		finally
-		{
-			syncButton.setEnabled(true);
-		}		
+	}
+	
+	@Override
+	public void syncCancelled()
+	{
+		endSync();
+	}
+	
+	protected void endSync()
+	{
+		tree.setExpandedNodes(taskTree.findTasks(expandedBeforeSync));
+		expandedBeforeSync = null;
+		setTitle("Task Tree");
+		syncButton.setText("Sync");
+		syncButton.setEnabled(true);
 	}
 	
 	@Override
 	public boolean confirmMerge()
 	{
-		return JOptionPane.showConfirmDialog(this, "Was the merge completed successfully?",
-				"Merge",JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE)==JOptionPane.YES_OPTION;
-		
+		final boolean[] confirmed = new boolean[1];
+		try
+		{
+			SwingUtilities.invokeAndWait(new Runnable(){
+				public void run()
+				{
+					confirmed[0] = JOptionPane.showConfirmDialog(Main.this, 
+							"Was the merge completed successfully?", "Merge",
+							JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE)==JOptionPane.YES_OPTION;
+				}
+			});
+		}
+		catch(Exception e)
+		{
+			return false;
+		}
+		return confirmed[0];
 	}
 
 	public static void main(String[] args)
 	{		
-		Main main = new Main(new TaskTree(System.getProperty("user.home")+"/.tasktree/"));
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run()
+			{
+				new Main(new TaskTree(System.getProperty("user.home")+"/.tasktree/"));
+			}
+		});
 	}
 }
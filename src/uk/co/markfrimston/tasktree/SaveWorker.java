@@ -0,0 +1,141 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+/*
+ * Background thread which writes out changes to the task tree. Bursts of edits
+ * are coalesced into one write once they have been quiet for the debounce 
+ * window, or once the oldest unwritten edit reaches the maximum latency.
+ */
+public class SaveWorker extends Thread
+{
+	protected static final long DEBOUNCE_MILLIS = 250;
+	protected static final long MAX_LATENCY_MILLIS = 2000;
+	
+	protected TaskTree taskTree;
+	protected SaveErrorHandler errorHandler;
+	protected long firstDirty = 0L;
+	protected long lastDirty = 0L;
+	protected long dirtyCount = 0L;
+	protected long savedCount = 0L;
+	protected boolean flushRequested = false;
+	protected boolean stop = false;
+	
+	public SaveWorker(TaskTree taskTree)
+	{
+		super("Save worker");
+		this.taskTree = taskTree;
+		setDaemon(true);
+	}
+	
+	public synchronized void setErrorHandler(SaveErrorHandler errorHandler)
+	{
+		this.errorHandler = errorHandler;
+	}
+	
+	public synchronized void markDirty()
+	{
+		long now = System.currentTimeMillis();
+		if(firstDirty==0L){
+			firstDirty = now;
+		}
+		lastDirty = now;
+		dirtyCount ++;
+		notifyAll();
+	}
+	
+	// writes any outstanding changes immediately, waiting until they are done
+	public synchronized void flush() throws InterruptedException
+	{
+		long target = dirtyCount;
+		flushRequested = true;
+		notifyAll();
+		while(savedCount < target && isAlive()){
+			wait(100);
+		}
+	}
+	
+	public synchronized void requestStop()
+	{
+		stop = true;
+		notifyAll();
+	}
+	
+	public void run()
+	{
+		while(true)
+		{
+			long target;
+			synchronized(this)
+			{
+				if(firstDirty==0L)
+				{
+					flushRequested = false;
+					if(stop){
+						return;
+					}
+					try{
+						wait();
+					}catch(InterruptedException e){}
+					continue;
+				}
+				long due = Math.min(lastDirty+DEBOUNCE_MILLIS, firstDirty+MAX_LATENCY_MILLIS);
+				long now = System.currentTimeMillis();
+				if(now < due && !flushRequested && !stop)
+				{
+					try{
+						wait(due-now);
+					}catch(InterruptedException e){}
+					continue;
+				}
+				firstDirty = 0L;
+				target = dirtyCount;
+			}
+			
+			Exception error = null;
+			try
+			{
+				taskTree.persist();
+			}
+			catch(Exception e)
+			{
+				error = e;
+			}
+			
+			SaveErrorHandler handler;
+			synchronized(this)
+			{
+				savedCount = target;
+				handler = errorHandler;
+				notifyAll();
+			}
+			if(error!=null && handler!=null){
+				handler.saveFailed(error);
+			}
+		}
+	}
+}
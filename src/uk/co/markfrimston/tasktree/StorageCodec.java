@@ -0,0 +1,149 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Compression applied to the task file and to sync transfers. Files are 
+ * written with the configured codec but read according to their first bytes, 
+ * so the setting can be changed at any time.
+ */
+public enum StorageCodec
+{
+	// plain xml
+	NONE,
+	// gzip at the default level
+	GZIP,
+	// zlib stream at the fastest deflate level
+	FAST;
+	
+	protected static final int BUFFER_SIZE = 8192;
+	
+	// the codec streams are finished rather than closed, since the file under 
+	// them is closed separately once it has been synced. Finishing also frees 
+	// the native deflater.
+	public OutputStream wrap(OutputStream out) throws IOException
+	{
+		switch(this)
+		{
+			case GZIP:
+				return new GZIPOutputStream(out, BUFFER_SIZE){
+					public void finish() throws IOException
+					{
+						super.finish();
+						def.end();
+					}
+				};
+			case FAST:
+				return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE){
+					public void finish() throws IOException
+					{
+						super.finish();
+						def.end();
+					}
+				};
+			default:
+				return out;
+		}
+	}
+	
+	public static void finish(OutputStream out) throws IOException
+	{
+		if(out instanceof DeflaterOutputStream){
+			((DeflaterOutputStream)out).finish();
+		}
+		out.flush();
+	}
+	
+	public InputStream wrap(InputStream in) throws IOException
+	{
+		switch(this)
+		{
+			case GZIP:
+				return new GZIPInputStream(in, BUFFER_SIZE);
+			case FAST:
+				return new InflaterInputStream(in);
+			default:
+				return in;
+		}
+	}
+	
+	// the HTTP content coding using the same format, or null for plain xml.
+	// HTTP's deflate coding is a zlib stream, as FAST writes.
+	public String getContentEncoding()
+	{
+		switch(this)
+		{
+			case GZIP:
+				return "gzip";
+			case FAST:
+				return "deflate";
+			default:
+				return null;
+		}
+	}
+	
+	// returns null for an encoding we can't read
+	public static StorageCodec forContentEncoding(String encoding)
+	{
+		if(encoding==null || encoding.length()==0 || encoding.equalsIgnoreCase("identity")){
+			return NONE;
+		}
+		for(StorageCodec codec : values())
+		{
+			if(encoding.equalsIgnoreCase(codec.getContentEncoding())){
+				return codec;
+			}
+		}
+		return null;
+	}
+	
+	// works out the codec from the start of the stream, which must support mark
+	public static StorageCodec detect(InputStream in) throws IOException
+	{
+		in.mark(2);
+		int b0 = in.read();
+		int b1 = in.read();
+		in.reset();
+		if(b0==0x1f && b1==0x8b){
+			return GZIP;
+		}
+		// zlib header: deflate method and a check value making it a multiple of 31
+		if(b0!=-1 && b1!=-1 && (b0 & 0x0f)==8 && ((b0<<8)|b1) % 31 == 0){
+			return FAST;
+		}
+		return NONE;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import org.apache.http.client.methods.HttpPost;
+
+/*
+ * Lets another thread stop one sync run. Each run is given its own, so a
+ * cancel made before the run starts still stops it, and never carries over
+ * to the next run. Cancelling aborts whatever request or merge the run is
+ * waiting on.
+ */
+public class SyncCancellation
+{
+	protected volatile boolean cancelled = false;
+	protected volatile HttpPost request;
+	protected volatile Process process;
+	
+	public void cancel()
+	{
+		cancelled = true;
+		HttpPost request = this.request;
+		if(request!=null){
+			request.abort();
+		}
+		Process process = this.process;
+		if(process!=null){
+			process.destroy();
+		}
+	}
+	
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+	
+	public void check() throws Exception
+	{
+		if(cancelled){
+			throw new Exception("Sync cancelled");
+		}
+	}
+	
+	// the request the run is waiting on, or null. A cancel made while it is
+	// being set is caught by the check which follows.
+	public void setRequest(HttpPost request)
+	{
+		this.request = request;
+	}
+	
+	public void setProcess(Process process)
+	{
+		this.process = process;
+	}
+}
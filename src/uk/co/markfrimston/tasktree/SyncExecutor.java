@@ -0,0 +1,169 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
+/*
+ * Runs a task tree's syncs in the background, one at a time. The threads come
+ * from a pool which can be shared between task trees, so syncing many trees
+ * at once doesn't start a thread per click. The listener hears about progress
+ * and the result on the event thread.
+ */
+public class SyncExecutor
+{
+	protected static ExecutorService sharedExecutor;
+	
+	protected TaskTree taskTree;
+	protected ExecutorService executor;
+	protected boolean running = false;
+	protected SyncCancellation cancellation;
+	
+	public SyncExecutor(TaskTree taskTree)
+	{
+		this(taskTree, getSharedExecutor());
+	}
+	
+	public SyncExecutor(TaskTree taskTree, ExecutorService executor)
+	{
+		this.taskTree = taskTree;
+		this.executor = executor;
+	}
+	
+	protected static synchronized ExecutorService getSharedExecutor()
+	{
+		if(sharedExecutor==null)
+		{
+			sharedExecutor = Executors.newCachedThreadPool(new ThreadFactory(){
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "Sync");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedExecutor;
+	}
+	
+	public synchronized boolean isRunning()
+	{
+		return running;
+	}
+	
+	// starts a sync, unless one is already running
+	public synchronized boolean start(final MergeConfirmer mergeConfirmer, final SyncListener listener)
+	{
+		if(running){
+			return false;
+		}
+		running = true;
+		// a new one for each run, so a cancel never carries over to the next
+		final SyncCancellation runCancellation = new SyncCancellation();
+		cancellation = runCancellation;
+		executor.execute(new Runnable(){
+			public void run()
+			{
+				Exception error = null;
+				try
+				{
+					taskTree.synchronise(mergeConfirmer, new EventThreadListener(listener), 
+							runCancellation);
+				}
+				catch(Exception e)
+				{
+					error = e;
+				}
+				finish(listener, error);
+			}
+		});
+		return true;
+	}
+	
+	// stops the running sync, aborting whatever request or merge it is waiting
+	// on. Changes already being applied to the tree are finished first.
+	public synchronized boolean cancel()
+	{
+		if(!running || cancellation.isCancelled()){
+			return false;
+		}
+		cancellation.cancel();
+		return true;
+	}
+	
+	protected void finish(final SyncListener listener, final Exception error)
+	{
+		final boolean wasCancelled;
+		synchronized(this)
+		{
+			wasCancelled = cancellation.isCancelled();
+			running = false;
+		}
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run()
+			{
+				// a sync cancelled too late to stop still succeeded
+				if(wasCancelled && error!=null){
+					listener.syncCancelled();
+				}else{
+					listener.syncFinished(error);
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Passes progress reports on to the event thread
+	 */
+	protected static class EventThreadListener implements SyncListener
+	{
+		protected SyncListener listener;
+		
+		public EventThreadListener(SyncListener listener)
+		{
+			this.listener = listener;
+		}
+		
+		public void syncProgress(final String stage)
+		{
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run()
+				{
+					listener.syncProgress(stage);
+				}
+			});
+		}
+		
+		public void syncFinished(Exception error){}
+		
+		public void syncCancelled(){}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+
+import javax.swing.Icon;
+import javax.swing.JComponent;
+import javax.swing.JTree;
+import javax.swing.UIManager;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.TreeCellRenderer;
+
+/*
+ * Draws a task row straight onto the tree: the bullet, the label and, when the 
+ * task is collapsed, its first leaf in grey italics. Unlike the html renderer 
+ * nothing is parsed or laid out, and every row is the same height, so it suits
+ * a JTree in large model mode.
+ */
+public class TaskCellPainter extends JComponent implements TreeCellRenderer
+{
+	private static final long serialVersionUID = 1L;
+	
+	protected static final int PADDING = 4;
+	protected static final int GAP = 4;
+	protected static final Color HINT_COLOR = new Color(0xc0, 0xc0, 0xc0);
+	
+	protected TaskRenderCache renderCache;
+	protected Icon icon;
+	protected String label;
+	protected String hint;
+	protected boolean selected;
+	protected int rowHeight;
+	protected Font hintFont;
+	protected Font hintBaseFont;
+	
+	public TaskCellPainter(TaskRenderCache renderCache, Icon icon)
+	{
+		this.renderCache = renderCache;
+		this.icon = icon;
+	}
+	
+	// the fixed row height for the given tree's font
+	public int getRowHeight(JTree tree)
+	{
+		FontMetrics metrics = getFontMetrics(tree.getFont());
+		return Math.max(icon.getIconHeight(), metrics.getHeight()) + PADDING*2;
+	}
+	
+	public Component getTreeCellRendererComponent(JTree tree, Object value, 
+			boolean selected, boolean expanded, boolean leaf, int row, boolean hasFocus)
+	{
+		DefaultMutableTreeNode node = (DefaultMutableTreeNode)value;
+		this.label = String.valueOf(node.getUserObject());
+		this.hint = renderCache.getHint(node, expanded);
+		this.selected = selected;
+		this.rowHeight = tree.getRowHeight();
+		setFont(tree.getFont());
+		return this;
+	}
+	
+	protected Font getHintFont()
+	{
+		if(hintBaseFont!=getFont())
+		{
+			hintBaseFont = getFont();
+			hintFont = hintBaseFont.deriveFont(Font.ITALIC);
+		}
+		return hintFont;
+	}
+	
+	public Dimension getPreferredSize()
+	{
+		int width = icon.getIconWidth() + GAP + getFontMetrics(getFont()).stringWidth(label) + GAP;
+		if(hint!=null)
+		{
+			FontMetrics hintMetrics = getFontMetrics(getHintFont());
+			width += hintMetrics.stringWidth(" (") + hintMetrics.stringWidth(hint) 
+					+ hintMetrics.charWidth(')');
+		}
+		return new Dimension(width, rowHeight);
+	}
+	
+	protected void paintComponent(Graphics g)
+	{
+		FontMetrics metrics = g.getFontMetrics(getFont());
+		int textX = icon.getIconWidth() + GAP;
+		int baseline = (getHeight() - metrics.getHeight())/2 + metrics.getAscent();
+		icon.paintIcon(this, g, 0, (getHeight() - icon.getIconHeight())/2);
+		
+		int labelWidth = metrics.stringWidth(label);
+		if(selected)
+		{
+			g.setColor(UIManager.getColor("Tree.selectionBackground"));
+			g.fillRect(textX-1, 0, labelWidth+2, getHeight());
+			g.setColor(UIManager.getColor("Tree.selectionForeground"));
+		}
+		else
+		{
+			g.setColor(UIManager.getColor("Tree.textForeground"));
+		}
+		g.setFont(getFont());
+		g.drawString(label, textX, baseline);
+		
+		if(hint!=null)
+		{
+			// drawn in pieces to save building a new string for every paint
+			FontMetrics hintMetrics = g.getFontMetrics(getHintFont());
+			int x = textX + labelWidth;
+			g.setColor(HINT_COLOR);
+			g.setFont(getHintFont());
+			g.drawString(" (", x, baseline);
+			x += hintMetrics.stringWidth(" (");
+			g.drawString(hint, x, baseline);
+			x += hintMetrics.stringWidth(hint);
+			g.drawString(")", x, baseline);
+		}
+	}
+	
+	// as with DefaultTreeCellRenderer, the tree repaints whole rows itself
+	public void validate(){}
+	public void invalidate(){}
+	public void revalidate(){}
+	public void repaint(long tm, int x, int y, int width, int height){}
+	public void repaint(){}
+}
@@ -0,0 +1,360 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/*
+ * The edits which turn one version of the task tree into another, identifying
+ * tasks by id, as exchanged with the server by delta syncs. Each task is placed
+ * after a sibling rather than at an index, so edits still apply if other 
+ * siblings have come and gone. The xml looks like:
+ * 
+ * <delta>
+ *     <add id="..." parent="..." after="..." label="..." />
+ *     <move id="..." parent="..." after="..." />
+ *     <rename id="..." label="..." />
+ *     <remove id="..." />
+ * </delta>
+ * 
+ * A missing parent means the top level and a missing sibling means first.
+ */
+public class TaskDelta
+{
+	public static final String ADD = "add";
+	public static final String MOVE = "move";
+	public static final String RENAME = "rename";
+	public static final String REMOVE = "remove";
+	
+	protected static DocumentBuilderFactory builderFact = DocumentBuilderFactory.newInstance();
+	
+	/*
+	 * A single edit
+	 */
+	public static class Op
+	{
+		protected String type;
+		protected long id;
+		protected long parent;
+		protected long after;
+		protected String label;
+		
+		public Op(String type, long id, long parent, long after, String label)
+		{
+			this.type = type;
+			this.id = id;
+			this.parent = parent;
+			this.after = after;
+			this.label = label;
+		}
+		
+		public String getType()
+		{
+			return type;
+		}
+		
+		public long getId()
+		{
+			return id;
+		}
+		
+		public long getParent()
+		{
+			return parent;
+		}
+		
+		public long getAfter()
+		{
+			return after;
+		}
+		
+		public String getLabel()
+		{
+			return label;
+		}
+	}
+	
+	protected List<Op> ops = new ArrayList<Op>();
+	
+	public List<Op> getOps()
+	{
+		return ops;
+	}
+	
+	public boolean isEmpty()
+	{
+		return ops.isEmpty();
+	}
+	
+	public void add(Op op)
+	{
+		ops.add(op);
+	}
+	
+	// works out the edits from one version to the other by playing them against
+	// a copy of the old version's structure, so that each edit is only recorded
+	// if the tree isn't already that way
+	public static TaskDelta between(TaskVersion from, TaskVersion to)
+	{
+		Map<Long,Long> parents = new HashMap<Long,Long>();
+		Map<Long,List<Long>> children = new HashMap<Long,List<Long>>();
+		Map<Long,String> labels = new HashMap<Long,String>();
+		List<TaskVersion> pending = new ArrayList<TaskVersion>();
+		List<Long> pendingIds = new ArrayList<Long>();
+		pending.add(from);
+		pendingIds.add(0L);
+		while(!pending.isEmpty())
+		{
+			TaskVersion node = pending.remove(pending.size()-1);
+			long id = pendingIds.remove(pendingIds.size()-1);
+			List<Long> childIds = new ArrayList<Long>(node.getChildCount());
+			for(int i=0; i<node.getChildCount(); i++)
+			{
+				TaskVersion child = node.getChildAt(i);
+				childIds.add(child.getId());
+				parents.put(child.getId(), id);
+				labels.put(child.getId(), child.getLabel());
+				pending.add(child);
+				pendingIds.add(child.getId());
+			}
+			children.put(id, childIds);
+		}
+		
+		TaskDelta delta = new TaskDelta();
+		Set<Long> kept = new HashSet<Long>();
+		pending.add(to);
+		pendingIds.add(0L);
+		while(!pending.isEmpty())
+		{
+			TaskVersion node = pending.remove(pending.size()-1);
+			long id = pendingIds.remove(pendingIds.size()-1);
+			long after = 0L;
+			for(int i=0; i<node.getChildCount(); i++)
+			{
+				TaskVersion child = node.getChildAt(i);
+				long childId = child.getId();
+				kept.add(childId);
+				if(!parents.containsKey(childId))
+				{
+					delta.add(new Op(ADD, childId, id, after, child.getLabel()));
+					children.put(childId, new ArrayList<Long>());
+					place(childId, id, after, parents, children);
+				}
+				else
+				{
+					List<Long> siblings = children.get(parents.get(childId));
+					int pos = siblings.indexOf(childId);
+					long currentAfter = pos==0 ? 0L : siblings.get(pos-1);
+					if(parents.get(childId)!=id || currentAfter!=after)
+					{
+						delta.add(new Op(MOVE, childId, id, after, null));
+						siblings.remove(pos);
+						place(childId, id, after, parents, children);
+					}
+					if(!labels.get(childId).equals(child.getLabel())){
+						delta.add(new Op(RENAME, childId, 0L, 0L, child.getLabel()));
+					}
+				}
+				after = childId;
+			}
+			// children are visited in reverse, but only after all their siblings
+			for(int i=node.getChildCount()-1; i>=0; i--)
+			{
+				pending.add(node.getChildAt(i));
+				pendingIds.add(node.getChildAt(i).getId());
+			}
+		}
+		
+		// removing a task removes whatever is still inside it
+		for(Map.Entry<Long,Long> entry : parents.entrySet())
+		{
+			long parent = entry.getValue();
+			if(!kept.contains(entry.getKey()) && (parent==0L || kept.contains(parent))){
+				delta.add(new Op(REMOVE, entry.getKey(), 0L, 0L, null));
+			}
+		}
+		return delta;
+	}
+	
+	protected static void place(long id, long parent, long after, Map<Long,Long> parents, 
+			Map<Long,List<Long>> children)
+	{
+		List<Long> siblings = children.get(parent);
+		siblings.add(after==0L ? 0 : siblings.indexOf(after)+1, id);
+		parents.put(id, parent);
+	}
+	
+	// makes the edits to the given tree as one batch, so that if any of them
+	// refers to a task which isn't there, none of them are kept
+	public void applyTo(TaskTree taskTree) throws Exception
+	{
+		taskTree.batch(new TaskBatch(){
+			public void run(TaskTree taskTree) throws Exception
+			{
+				for(Op op : ops){
+					apply(taskTree, op);
+				}
+			}
+		});
+	}
+	
+	protected void apply(TaskTree taskTree, Op op) throws Exception
+	{
+		if(op.type.equals(ADD))
+		{
+			if(taskTree.getTask(op.id)!=null){
+				throw new Exception("Task "+TaskIdMap.format(op.id)+" already exists");
+			}
+			DefaultMutableTreeNode parent = findParent(taskTree, op);
+			taskTree.addTask(parent, findPosition(taskTree, parent, op), op.label, op.id);
+			return;
+		}
+		DefaultMutableTreeNode node = taskTree.getTask(op.id);
+		if(node==null){
+			throw new Exception("Unknown task "+TaskIdMap.format(op.id));
+		}
+		if(op.type.equals(MOVE))
+		{
+			DefaultMutableTreeNode parent = findParent(taskTree, op);
+			if(parent.isNodeAncestor(node)){
+				throw new Exception("Can't move task "+TaskIdMap.format(op.id)+" inside itself");
+			}
+			int pos = findPosition(taskTree, parent, op);
+			if(node.getParent()==parent && parent.getIndex(node)<pos){
+				pos--;
+			}
+			taskTree.moveTask(node, parent, pos);
+		}
+		else if(op.type.equals(RENAME))
+		{
+			taskTree.renameTask(node, op.label);
+		}
+		else if(op.type.equals(REMOVE))
+		{
+			taskTree.removeTask(node);
+		}
+	}
+	
+	protected DefaultMutableTreeNode findParent(TaskTree taskTree, Op op) throws Exception
+	{
+		if(op.parent==0L){
+			return taskTree.getRoot();
+		}
+		DefaultMutableTreeNode parent = taskTree.getTask(op.parent);
+		if(parent==null){
+			throw new Exception("Unknown parent task "+TaskIdMap.format(op.parent));
+		}
+		return parent;
+	}
+	
+	protected int findPosition(TaskTree taskTree, DefaultMutableTreeNode parent, Op op) 
+		throws Exception
+	{
+		if(op.after==0L){
+			return 0;
+		}
+		DefaultMutableTreeNode after = taskTree.getTask(op.after);
+		if(after==null || after.getParent()!=parent){
+			throw new Exception("Unknown sibling task "+TaskIdMap.format(op.after));
+		}
+		return parent.getIndex(after)+1;
+	}
+	
+	public Document toDocument() throws Exception
+	{
+		Document doc = builderFact.newDocumentBuilder().newDocument();
+		Element deltaEl = doc.createElement("delta");
+		doc.appendChild(deltaEl);
+		for(Op op : ops)
+		{
+			deltaEl.appendChild(doc.createTextNode("\n\t"));
+			Element opEl = doc.createElement(op.type);
+			opEl.setAttribute("id", TaskIdMap.format(op.id));
+			if(op.parent!=0L){
+				opEl.setAttribute("parent", TaskIdMap.format(op.parent));
+			}
+			if(op.after!=0L){
+				opEl.setAttribute("after", TaskIdMap.format(op.after));
+			}
+			if(op.label!=null){
+				opEl.setAttribute("label", op.label);
+			}
+			deltaEl.appendChild(opEl);
+		}
+		if(!ops.isEmpty()){
+			deltaEl.appendChild(doc.createTextNode("\n"));
+		}
+		return doc;
+	}
+	
+	public static TaskDelta fromDocument(Document doc) throws Exception
+	{
+		Element deltaEl = doc.getDocumentElement();
+		if(deltaEl==null || !deltaEl.getNodeName().equals("delta")){
+			throw new Exception("Missing root element \"delta\"");
+		}
+		TaskDelta delta = new TaskDelta();
+		for(Node child=deltaEl.getFirstChild(); child!=null; child=child.getNextSibling())
+		{
+			if(child.getNodeType()!=Node.ELEMENT_NODE){
+				continue;
+			}
+			Element opEl = (Element)child;
+			String type = opEl.getNodeName();
+			if(!type.equals(ADD) && !type.equals(MOVE) && !type.equals(RENAME) && !type.equals(REMOVE)){
+				throw new Exception("Unknown delta operation \""+type+"\"");
+			}
+			long id = TaskIdMap.parse(opEl.getAttribute("id"));
+			if(id==0L){
+				throw new Exception("No id for delta operation \""+type+"\"");
+			}
+			String label = null;
+			if(type.equals(ADD) || type.equals(RENAME))
+			{
+				label = opEl.getAttribute("label");
+				if(label.length()==0){
+					throw new Exception("No label for delta operation \""+type+"\"");
+				}
+			}
+			delta.add(new Op(type, id, TaskIdMap.parse(opEl.getAttribute("parent")), 
+					TaskIdMap.parse(opEl.getAttribute("after")), label));
+		}
+		return delta;
+	}
+}
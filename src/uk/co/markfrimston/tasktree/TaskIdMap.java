@@ -0,0 +1,187 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.security.SecureRandom;
+import java.util.Random;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+/*
+ * Map from task id to node, using open addressing over primitive arrays so that
+ * a big tree doesn't need a boxed key and entry object per task. Task ids are 
+ * random positive longs, written in base 36, with 0 meaning no id.
+ */
+public class TaskIdMap
+{
+	protected static final int INITIAL_CAPACITY = 64;
+	protected static final Random random = new Random(new SecureRandom().nextLong());
+	
+	protected long[] keys = new long[INITIAL_CAPACITY];
+	protected DefaultMutableTreeNode[] values = new DefaultMutableTreeNode[INITIAL_CAPACITY];
+	protected int size = 0;
+	
+	public static long newId()
+	{
+		long id;
+		do{
+			id = random.nextLong() >>> 1;
+		}while(id==0L);
+		return id;
+	}
+	
+	public static String format(long id)
+	{
+		return Long.toString(id, 36);
+	}
+	
+	// returns 0 for anything that isn't a valid id
+	public static long parse(String text)
+	{
+		if(text==null || text.length()==0 || text.length()>13){
+			return 0L;
+		}
+		try
+		{
+			long id = Long.parseLong(text, 36);
+			return id > 0 ? id : 0L;
+		}
+		catch(NumberFormatException e)
+		{
+			return 0L;
+		}
+	}
+	
+	// an id not used by any task in the map
+	public long newUnusedId()
+	{
+		long id;
+		do{
+			id = newId();
+		}while(get(id)!=null);
+		return id;
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public DefaultMutableTreeNode get(long id)
+	{
+		if(id==0L){
+			return null;
+		}
+		int mask = keys.length-1;
+		for(int i=slot(id, mask); keys[i]!=0L; i=(i+1)&mask)
+		{
+			if(keys[i]==id){
+				return values[i];
+			}
+		}
+		return null;
+	}
+	
+	public void put(long id, DefaultMutableTreeNode node)
+	{
+		if(id==0L){
+			throw new IllegalArgumentException("Task id cannot be 0");
+		}
+		if((size+1)*4 > keys.length*3){
+			resize(keys.length*2);
+		}
+		int mask = keys.length-1;
+		int i = slot(id, mask);
+		while(keys[i]!=0L && keys[i]!=id){
+			i = (i+1)&mask;
+		}
+		if(keys[i]==0L){
+			size ++;
+		}
+		keys[i] = id;
+		values[i] = node;
+	}
+	
+	public void remove(long id)
+	{
+		if(id==0L){
+			return;
+		}
+		int mask = keys.length-1;
+		int i = slot(id, mask);
+		while(keys[i]!=id)
+		{
+			if(keys[i]==0L){
+				return;
+			}
+			i = (i+1)&mask;
+		}
+		// shift later entries of the same run back, so lookups never stop short
+		int gap = i;
+		for(int j=(i+1)&mask; keys[j]!=0L; j=(j+1)&mask)
+		{
+			int home = slot(keys[j], mask);
+			if(((j-home)&mask) >= ((j-gap)&mask))
+			{
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		keys[gap] = 0L;
+		values[gap] = null;
+		size --;
+	}
+	
+	public void clear()
+	{
+		keys = new long[INITIAL_CAPACITY];
+		values = new DefaultMutableTreeNode[INITIAL_CAPACITY];
+		size = 0;
+	}
+	
+	protected void resize(int capacity)
+	{
+		long[] oldKeys = keys;
+		DefaultMutableTreeNode[] oldValues = values;
+		keys = new long[capacity];
+		values = new DefaultMutableTreeNode[capacity];
+		size = 0;
+		for(int i=0; i<oldKeys.length; i++)
+		{
+			if(oldKeys[i]!=0L){
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+	
+	protected static int slot(long id, int mask)
+	{
+		long hash = id * 0x9e3779b97f4a7c15L;
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+}
@@ -0,0 +1,117 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.swing.JTree;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreeNode;
+import javax.swing.tree.TreePath;
+
+/*
+ * JTree which can save and restore the set of expanded tasks. Restoring 
+ * expands everything quietly and then notifies the UI once, so the layout is 
+ * recalculated in a single pass rather than once per path.
+ */
+public class TaskJTree extends JTree
+{
+	private static final long serialVersionUID = 1L;
+	
+	protected boolean restoring = false;
+	
+	public TaskJTree(TreeModel model)
+	{
+		super(model);
+	}
+	
+	// switches to plain rows of one height, which lets the tree lay out only the
+	// rows on screen rather than measuring every expanded one
+	public void setLargeTreeView(TaskCellPainter painter)
+	{
+		setCellRenderer(painter);
+		setRowHeight(painter.getRowHeight(this));
+		setLargeModel(true);
+	}
+	
+	public List<TreeNode> getExpandedNodes()
+	{
+		List<TreeNode> nodes = new ArrayList<TreeNode>();
+		TreePath rootPath = new TreePath(getModel().getRoot());
+		Enumeration<TreePath> expanded = getExpandedDescendants(rootPath);
+		if(expanded==null){
+			return nodes;
+		}
+		while(expanded.hasMoreElements())
+		{
+			TreePath path = expanded.nextElement();
+			if(path.getPathCount() >= 2){
+				nodes.add((TreeNode)path.getLastPathComponent());
+			}
+		}
+		return nodes;
+	}
+	
+	public void setExpandedNodes(Collection<? extends TreeNode> nodes)
+	{
+		Object root = getModel().getRoot();
+		TreePath rootPath = new TreePath(root);
+		restoring = true;
+		try
+		{
+			setExpandedState(rootPath, true);
+			for(TreeNode node : nodes)
+			{
+				List<Object> components = new ArrayList<Object>();
+				for(TreeNode n=node; n!=null; n=n.getParent()){
+					components.add(0, n);
+				}
+				// skip nodes which are no longer in the tree
+				if(components.get(0)!=root || node.isLeaf()){
+					continue;
+				}
+				setExpandedState(new TreePath(components.toArray()), true);
+			}
+		}
+		finally
+		{
+			restoring = false;
+		}
+		// the UI picks up every expanded descendant of the path it is told about
+		fireTreeExpanded(rootPath);
+	}
+	
+	public void fireTreeExpanded(TreePath path)
+	{
+		if(!restoring){
+			super.fireTreeExpanded(path);
+		}
+	}
+}
@@ -0,0 +1,718 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package uk.co.markfrimston.tasktree;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.TreeNode;
+
+/*
+ * Append-only log of the edits made since tasks.xml was last written. The header
+ * identifies the checkpoint the records apply to (by its length and CRC), so a
+ * journal left behind by an older or externally modified checkpoint is ignored.
+ * Each record is framed by its length and CRC so a torn final write is dropped
+ * on replay.
+ */
+public class TaskJournal
+{
+	public static enum SyncPolicy
+	{
+		// write and fsync every record as it is made
+		ALWAYS,
+		// buffer records until the next flush, then fsync
+		PERIODIC,
+		// buffer records until the next flush, leaving fsync to the OS
+		NEVER
+	}
+
+	public static class Mark
+	{
+		protected int generation;
+		protected long length;
+		protected int recordCount;
+		
+		public int getRecordCount()
+		{
+			return recordCount;
+		}
+	}
+
+	protected static final int MAGIC = 0x54544a31;
+	protected static final int HEADER_LENGTH = 20;
+	protected static final int MAX_RECORD_LENGTH = 16*1024*1024;
+	protected static final byte OP_ADD = 1;
+	protected static final byte OP_MOVE = 2;
+	protected static final byte OP_REMOVE = 3;
+	protected static final byte OP_RENAME = 4;
+	// adds written before tasks had ids use OP_ADD
+	protected static final byte OP_ADD_ID = 5;
+
+	protected File file;
+	protected RandomAccessFile raf;
+	protected SyncPolicy syncPolicy;
+	protected int recordCount = 0;
+	protected boolean unsynced = false;
+	protected long lastAppend = 0L;
+	protected int generation = 0;
+	protected ByteArrayOutputStream record = new ByteArrayOutputStream();
+	protected ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	protected CRC32 crc = new CRC32();
+	protected LabelPool labelPool;
+
+	public TaskJournal(File file, SyncPolicy syncPolicy)
+	{
+		this(file, syncPolicy, null);
+	}
+
+	// labels replayed into the live tree are interned in the given pool
+	public TaskJournal(File file, SyncPolicy syncPolicy, LabelPool labelPool)
+	{
+		this.file = file;
+		this.syncPolicy = syncPolicy;
+		this.labelPool = labelPool;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public SyncPolicy getSyncPolicy()
+	{
+		return syncPolicy;
+	}
+
+	public void setSyncPolicy(SyncPolicy syncPolicy)
+	{
+		this.syncPolicy = syncPolicy;
+	}
+
+	public synchronized int getRecordCount()
+	{
+		return recordCount;
+	}
+
+	public synchronized long getLength() throws IOException
+	{
+		return raf!=null ? raf.length()+pending.size() : 0L;
+	}
+
+	public synchronized long getLastAppendTime()
+	{
+		return lastAppend;
+	}
+
+	public synchronized boolean isOpen()
+	{
+		return raf!=null;
+	}
+
+	// marks the current end of the journal, for folding into a checkpoint
+	public synchronized Mark mark() throws IOException
+	{
+		flush();
+		Mark mark = new Mark();
+		mark.generation = generation;
+		mark.length = getLength();
+		mark.recordCount = recordCount;
+		return mark;
+	}
+
+	protected File getPendingFile()
+	{
+		return new File(file.getPath()+".tmp");
+	}
+
+	// replays any records belonging to the given checkpoint onto the tree, then
+	// opens the journal for appending after the last good record. Returns the
+	// number of records replayed.
+	public synchronized int open(long checkpointLength, long checkpointCrc, 
+			DefaultMutableTreeNode root) throws IOException
+	{
+		close();
+		
+		// a compaction interrupted after swapping the checkpoint leaves the 
+		// journal for the new checkpoint waiting beside the old one
+		File pending = getPendingFile();
+		if(pending.exists())
+		{
+			if(matchesCheckpoint(pending, checkpointLength, checkpointCrc)){
+				replaceFile(pending, file);
+			}else{
+				pending.delete();
+			}
+		}
+		
+		long validEnd = 0L;
+		int replayed = 0;
+		if(file.exists())
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try
+			{
+				if(readHeader(in, checkpointLength, checkpointCrc))
+				{
+					validEnd = HEADER_LENGTH;
+					byte[] payload;
+					while((payload = readRecord(in)) != null && apply(payload, root))
+					{
+						validEnd += payload.length + 8;
+						replayed ++;
+					}
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		raf = new RandomAccessFile(file, "rw");
+		if(validEnd == 0L){
+			writeHeader(checkpointLength, checkpointCrc);
+		}else{
+			raf.setLength(validEnd);
+			raf.seek(validEnd);
+		}
+		recordCount = replayed;
+		generation ++;
+		return replayed;
+	}
+	
+	// applies the records up to the mark onto a copy of the checkpoint. Returns 
+	// false if the journal no longer belongs to the given checkpoint.
+	public boolean replay(long checkpointLength, long checkpointCrc, 
+			TaskStore store, Mark mark) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try
+		{
+			if(!readHeader(in, checkpointLength, checkpointCrc)){
+				return false;
+			}
+			long pos = HEADER_LENGTH;
+			while(pos < mark.length)
+			{
+				byte[] payload = readRecord(in);
+				if(payload==null || !apply(payload, store)){
+					return false;
+				}
+				pos += payload.length + 8;
+			}
+			return true;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	// installs a checkpoint containing everything up to the mark, keeping any
+	// records appended since. Returns false if the journal was reset meanwhile.
+	public synchronized boolean swapCheckpoint(Mark mark, File newCheckpoint, 
+			AtomicFile checkpoint, long checkpointLength, long checkpointCrc) throws IOException
+	{
+		if(raf==null || mark.generation!=generation)
+		{
+			newCheckpoint.delete();
+			return false;
+		}
+		
+		flush();
+		byte[] tail = new byte[(int)(raf.length()-mark.length)];
+		raf.seek(mark.length);
+		raf.readFully(tail);
+		
+		// write the new journal beside the old one before swapping the checkpoint,
+		// so there is no point at which the later edits are lost
+		File pending = getPendingFile();
+		RandomAccessFile pendingRaf = new RandomAccessFile(pending, "rw");
+		try
+		{
+			pendingRaf.setLength(0);
+			pendingRaf.writeInt(MAGIC);
+			pendingRaf.writeLong(checkpointLength);
+			pendingRaf.writeLong(checkpointCrc);
+			pendingRaf.write(tail);
+			pendingRaf.getFD().sync();
+		}
+		finally
+		{
+			pendingRaf.close();
+		}
+		
+		raf.close();
+		raf = null;
+		try
+		{
+			checkpoint.commit(newCheckpoint);
+			replaceFile(pending, file);
+		}
+		catch(IOException e)
+		{
+			// carry on with the old journal, which still matches whichever 
+			// checkpoint generation survived
+			pending.delete();
+			newCheckpoint.delete();
+			raf = new RandomAccessFile(file, "rw");
+			raf.seek(raf.length());
+			throw e;
+		}
+		
+		raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length());
+		recordCount -= mark.recordCount;
+		unsynced = false;
+		generation ++;
+		return true;
+	}
+	
+	protected static void replaceFile(File source, File target) throws IOException
+	{
+		if(!source.renameTo(target))
+		{
+			// windows won't rename over an existing file
+			target.delete();
+			if(!source.renameTo(target)){
+				throw new IOException("Failed to rename "+source+" to "+target);
+			}
+		}
+	}
+
+	// empties the journal, marking it as applying to the given checkpoint
+	public synchronized void reset(long checkpointLength, long checkpointCrc) throws IOException
+	{
+		if(raf==null){
+			raf = new RandomAccessFile(file, "rw");
+		}
+		pending.reset();
+		writeHeader(checkpointLength, checkpointCrc);
+		recordCount = 0;
+		generation ++;
+	}
+
+	protected void writeHeader(long checkpointLength, long checkpointCrc) throws IOException
+	{
+		raf.setLength(0);
+		raf.seek(0);
+		raf.writeInt(MAGIC);
+		raf.writeLong(checkpointLength);
+		raf.writeLong(checkpointCrc);
+		raf.getFD().sync();
+		unsynced = false;
+	}
+	
+	protected boolean readHeader(DataInputStream in, long checkpointLength, long checkpointCrc)
+		throws IOException
+	{
+		try{
+			return in.readInt()==MAGIC && in.readLong()==checkpointLength
+				&& in.readLong()==checkpointCrc;
+		}catch(EOFException e){
+			return false;
+		}
+	}
+	
+	protected boolean matchesCheckpoint(File journalFile, long checkpointLength, 
+			long checkpointCrc) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+		try{
+			return readHeader(in, checkpointLength, checkpointCrc);
+		}finally{
+			in.close();
+		}
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if(raf!=null)
+		{
+			flush();
+			sync();
+			raf.close();
+			raf = null;
+		}
+	}
+
+	public synchronized void sync() throws IOException
+	{
+		if(raf!=null && unsynced)
+		{
+			raf.getFD().sync();
+			unsynced = false;
+		}
+	}
+	
+	// writes out buffered records, forcing them to disk unless the policy 
+	// leaves that to the OS
+	public synchronized void flush() throws IOException
+	{
+		if(raf==null){
+			return;
+		}
+		if(pending.size() > 0)
+		{
+			raf.write(pending.toByteArray());
+			pending.reset();
+			unsynced = true;
+		}
+		if(syncPolicy!=SyncPolicy.NEVER){
+			sync();
+		}
+	}
+
+	public synchronized void logAdd(TreeNode parent, int childPos, String label, long id) 
+		throws IOException
+	{
+		record.reset();
+		record.write(OP_ADD_ID);
+		writePath(parent);
+		writeVarInt(childPos);
+		writeString(label);
+		writeVarLong(id);
+		append();
+	}
+
+	public synchronized void logMove(TreeNode node, TreeNode parent, int childPos) throws IOException
+	{
+		record.reset();
+		record.write(OP_MOVE);
+		writePath(node);
+		writePath(parent);
+		writeVarInt(childPos);
+		append();
+	}
+
+	public synchronized void logRemove(TreeNode node) throws IOException
+	{
+		record.reset();
+		record.write(OP_REMOVE);
+		writePath(node);
+		append();
+	}
+
+	public synchronized void logRename(TreeNode node, String label) throws IOException
+	{
+		record.reset();
+		record.write(OP_RENAME);
+		writePath(node);
+		writeString(label);
+		append();
+	}
+
+	protected void append() throws IOException
+	{
+		if(raf==null){
+			throw new IOException("Journal not open");
+		}
+		byte[] payload = record.toByteArray();
+		int length = payload.length;
+		crc.reset();
+		crc.update(payload);
+		byte[] framed = new byte[length+8];
+		putInt(framed, 0, length);
+		System.arraycopy(payload, 0, framed, 4, length);
+		putInt(framed, length+4, (int)crc.getValue());
+		pending.write(framed);
+		recordCount ++;
+		lastAppend = System.currentTimeMillis();
+
+		if(syncPolicy==SyncPolicy.ALWAYS){
+			flush();
+		}
+	}
+
+	protected static void putInt(byte[] bytes, int offset, int value)
+	{
+		bytes[offset] = (byte)(value >>> 24);
+		bytes[offset+1] = (byte)(value >>> 16);
+		bytes[offset+2] = (byte)(value >>> 8);
+		bytes[offset+3] = (byte)value;
+	}
+
+	protected void writePath(TreeNode node)
+	{
+		int depth = 0;
+		for(TreeNode n=node; n.getParent()!=null; n=n.getParent()){
+			depth ++;
+		}
+		int[] path = new int[depth];
+		for(TreeNode n=node; n.getParent()!=null; n=n.getParent()){
+			path[--depth] = n.getParent().getIndex(n);
+		}
+		writeVarInt(path.length);
+		for(int i=0; i<path.length; i++){
+			writeVarInt(path[i]);
+		}
+	}
+
+	protected void writeString(String s) throws IOException
+	{
+		byte[] bytes = s.getBytes("UTF-8");
+		writeVarInt(bytes.length);
+		record.write(bytes);
+	}
+
+	protected void writeVarInt(int value)
+	{
+		while((value & ~0x7f) != 0)
+		{
+			record.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		record.write(value);
+	}
+
+	protected void writeVarLong(long value)
+	{
+		while((value & ~0x7fL) != 0)
+		{
+			record.write((int)(value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		record.write((int)value);
+	}
+
+	// returns null at a clean end of file or a torn / corrupt record
+	protected byte[] readRecord(DataInputStream in) throws IOException
+	{
+		int length;
+		try{
+			length = in.readInt();
+		}catch(EOFException e){
+			return null;
+		}
+		if(length < 1 || length > MAX_RECORD_LENGTH){
+			return null;
+		}
+		byte[] payload = new byte[length];
+		try{
+			in.readFully(payload);
+			int recordCrc = in.readInt();
+			CRC32 payloadCrc = new CRC32();
+			payloadCrc.update(payload);
+			if((int)payloadCrc.getValue() != recordCrc){
+				return null;
+			}
+		}catch(EOFException e){
+			return null;
+		}
+		return payload;
+	}
+
+	// applies a record to the tree, returning false if it doesn't fit the tree
+	protected boolean apply(byte[] payload, DefaultMutableTreeNode root) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		try
+		{
+			switch(in.readByte())
+			{
+				case OP_ADD:
+				case OP_ADD_ID:
+				{
+					// tasks without an id are given one when the tree is indexed
+					DefaultMutableTreeNode parent = readPath(in, root);
+					int pos = readVarInt(in);
+					TaskNode node = new TaskNode(intern(readString(in)));
+					if(payload[0]==OP_ADD_ID){
+						node.setId(readVarLong(in));
+					}
+					parent.insert(node, pos);
+					return true;
+				}
+				case OP_MOVE:
+				{
+					DefaultMutableTreeNode node = readPath(in, root);
+					DefaultMutableTreeNode parent = readPath(in, root);
+					int pos = readVarInt(in);
+					if(node==root || node.isNodeDescendant(parent)){
+						return false;
+					}
+					// the position is counted without the node, so check it before
+					// the node is taken out
+					int limit = parent.getChildCount() - (node.getParent()==parent ? 1 : 0);
+					if(pos < 0 || pos > limit){
+						return false;
+					}
+					node.removeFromParent();
+					parent.insert(node, pos);
+					return true;
+				}
+				case OP_REMOVE:
+				{
+					DefaultMutableTreeNode node = readPath(in, root);
+					if(node==root){
+						return false;
+					}
+					node.removeFromParent();
+					return true;
+				}
+				case OP_RENAME:
+				{
+					DefaultMutableTreeNode node = readPath(in, root);
+					node.setUserObject(intern(readString(in)));
+					return true;
+				}
+				default:
+					return false;
+			}
+		}
+		catch(EOFException e)
+		{
+			return false;
+		}
+		catch(RuntimeException e)
+		{
+			// index out of range etc - records don't match the tree
+			return false;
+		}
+	}
+
+	// same as above, for a detached copy of the tree
+	protected boolean apply(byte[] payload, TaskStore store) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		try
+		{
+			switch(in.readByte())
+			{
+				case OP_ADD:
+				case OP_ADD_ID:
+				{
+					int parent = readPath(in, store);
+					int pos = readVarInt(in);
+					String label = readString(in);
+					long id = payload[0]==OP_ADD_ID ? readVarLong(in) : TaskIdMap.newId();
+					store.insert(parent, pos, label, id);
+					return true;
+				}
+				case OP_MOVE:
+				{
+					int node = readPath(in, store);
+					int parent = readPath(in, store);
+					store.move(node, parent, readVarInt(in));
+					return true;
+				}
+				case OP_REMOVE:
+				{
+					store.remove(readPath(in, store));
+					return true;
+				}
+				case OP_RENAME:
+				{
+					int node = readPath(in, store);
+					store.setLabel(node, readString(in));
+					return true;
+				}
+				default:
+					return false;
+			}
+		}
+		catch(EOFException e)
+		{
+			return false;
+		}
+		catch(RuntimeException e)
+		{
+			return false;
+		}
+	}
+
+	protected DefaultMutableTreeNode readPath(DataInputStream in, DefaultMutableTreeNode root)
+		throws IOException
+	{
+		int length = readVarInt(in);
+		DefaultMutableTreeNode node = root;
+		for(int i=0; i<length; i++){
+			node = (DefaultMutableTreeNode)node.getChildAt(readVarInt(in));
+		}
+		return node;
+	}
+
+	protected int readPath(DataInputStream in, TaskStore store) throws IOException
+	{
+		int length = readVarInt(in);
+		int node = TaskStore.ROOT;
+		for(int i=0; i<length; i++){
+			node = store.getChildAt(node, readVarInt(in));
+		}
+		return node;
+	}
+
+	protected String intern(String label)
+	{
+		return labelPool!=null ? labelPool.intern(label) : label;
+	}
+
+	protected String readString(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	protected int readVarInt(DataInputStream in) throws IOException
+	{
+		int value = 0;
+		for(int shift=0; shift<32; shift+=7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if((b & 0x80)==0){
+				return value;
+			}
+		}
+		throw new IOException("Malformed journal record");
+	}
+
+	protected long readVarLong(DataInputStream in) throws IOException
+	{
+		long value = 0L;
+		for(int shift=0; shift<64; shift+=7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7f) << shift;
+			if((b & 0x80)==0){
+				return value;
+			}
+		}
+		throw new IOException("Malformed journal record");
+	}
+}
@@ -0,0 +1,435 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Vector;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.MutableTreeNode;
+import javax.swing.tree.TreeNode;
+
+/*
+ * Task node which keeps a large list of children in a treap ordered by 
+ * position, rather than in a Vector, so that inserting, removing and finding 
+ * the index of a child take logarithmic rather than linear time. Small lists 
+ * stay in the Vector. The treap links live in the child nodes themselves, so 
+ * every child must be a TaskNode for the parent to switch over. Also carries 
+ * the task's id.
+ */
+public class TaskNode extends DefaultMutableTreeNode
+{
+	private static final long serialVersionUID = 1L;
+	
+	protected static final int TREAP_THRESHOLD = 64;
+	protected static final Random random = new Random();
+	
+	// root of the treap of children, when this node is using one
+	protected TaskNode childRoot;
+	
+	// links of this node within its parent's treap
+	protected TaskNode left;
+	protected TaskNode right;
+	protected TaskNode up;
+	protected int weight = 1;
+	protected int priority = random.nextInt();
+	
+	protected long id = 0L;
+	
+	public TaskNode()
+	{
+		super();
+	}
+	
+	public TaskNode(Object userObject)
+	{
+		super(userObject);
+	}
+	
+	public long getId()
+	{
+		return id;
+	}
+	
+	public void setId(long id)
+	{
+		this.id = id;
+	}
+	
+	public int getChildCount()
+	{
+		if(childRoot!=null){
+			return childRoot.weight;
+		}
+		return super.getChildCount();
+	}
+	
+	public TreeNode getChildAt(int index)
+	{
+		if(childRoot==null){
+			return super.getChildAt(index);
+		}
+		if(index < 0 || index >= childRoot.weight){
+			throw new ArrayIndexOutOfBoundsException("index "+index+" out of range");
+		}
+		TaskNode node = childRoot;
+		while(true)
+		{
+			int leftWeight = weightOf(node.left);
+			if(index < leftWeight)
+			{
+				node = node.left;
+			}
+			else if(index == leftWeight)
+			{
+				return node;
+			}
+			else
+			{
+				index -= leftWeight+1;
+				node = node.right;
+			}
+		}
+	}
+	
+	public int getIndex(TreeNode child)
+	{
+		if(childRoot==null){
+			return super.getIndex(child);
+		}
+		if(child==null){
+			throw new IllegalArgumentException("argument is null");
+		}
+		if(child.getParent()!=this || !(child instanceof TaskNode)){
+			return -1;
+		}
+		TaskNode node = (TaskNode)child;
+		int index = weightOf(node.left);
+		while(node.up!=null)
+		{
+			if(node==node.up.right){
+				index += weightOf(node.up.left)+1;
+			}
+			node = node.up;
+		}
+		return index;
+	}
+	
+	public Enumeration<TreeNode> children()
+	{
+		if(childRoot==null){
+			return super.children();
+		}
+		return new Enumeration<TreeNode>(){
+			TaskNode next = first(childRoot);
+			public boolean hasMoreElements()
+			{
+				return next!=null;
+			}
+			public TreeNode nextElement()
+			{
+				if(next==null){
+					throw new NoSuchElementException();
+				}
+				TaskNode current = next;
+				next = successor(next);
+				return current;
+			}
+		};
+	}
+	
+	public TreeNode getFirstChild()
+	{
+		if(childRoot==null){
+			return super.getFirstChild();
+		}
+		return first(childRoot);
+	}
+	
+	public TreeNode getLastChild()
+	{
+		if(childRoot==null){
+			return super.getLastChild();
+		}
+		TaskNode node = childRoot;
+		while(node.right!=null){
+			node = node.right;
+		}
+		return node;
+	}
+	
+	public void insert(MutableTreeNode newChild, int childIndex)
+	{
+		if(childRoot==null)
+		{
+			super.insert(newChild, childIndex);
+			// retry at each doubling, in case a child which isn't a task node 
+			// prevented it last time
+			int count = super.getChildCount();
+			if(count >= TREAP_THRESHOLD && (count & (count-1))==0){
+				toTreap();
+			}
+			return;
+		}
+		if(newChild==null){
+			throw new IllegalArgumentException("new child is null");
+		}
+		if(!(newChild instanceof TaskNode))
+		{
+			// only task nodes can be linked into the treap
+			toVector();
+			super.insert(newChild, childIndex);
+			return;
+		}
+		if(isNodeAncestor(newChild)){
+			throw new IllegalArgumentException("new child is an ancestor");
+		}
+		MutableTreeNode oldParent = (MutableTreeNode)newChild.getParent();
+		if(oldParent!=null){
+			oldParent.remove(newChild);
+		}
+		if(childIndex < 0 || childIndex > getChildCount()){
+			throw new ArrayIndexOutOfBoundsException("index "+childIndex+" out of range");
+		}
+		newChild.setParent(this);
+		TaskNode node = (TaskNode)newChild;
+		node.left = null;
+		node.right = null;
+		node.weight = 1;
+		TaskNode[] parts = split(childRoot, childIndex);
+		childRoot = merge(merge(parts[0], node), parts[1]);
+		childRoot.up = null;
+	}
+	
+	public void remove(int childIndex)
+	{
+		if(childRoot==null)
+		{
+			super.remove(childIndex);
+			return;
+		}
+		TaskNode child = (TaskNode)getChildAt(childIndex);
+		TaskNode[] parts = split(childRoot, childIndex);
+		TaskNode[] rest = split(parts[1], 1);
+		childRoot = merge(parts[0], rest[1]);
+		if(childRoot!=null){
+			childRoot.up = null;
+		}
+		child.left = null;
+		child.right = null;
+		child.up = null;
+		child.weight = 1;
+		child.setParent(null);
+	}
+	
+	public void removeAllChildren()
+	{
+		if(childRoot==null)
+		{
+			super.removeAllChildren();
+			return;
+		}
+		for(TaskNode node=first(childRoot); node!=null; node=successor(node)){
+			node.setParent(null);
+		}
+		clearLinks(childRoot);
+		childRoot = null;
+	}
+	
+	public Object clone()
+	{
+		TaskNode copy = (TaskNode)super.clone();
+		copy.childRoot = null;
+		copy.left = null;
+		copy.right = null;
+		copy.up = null;
+		copy.weight = 1;
+		return copy;
+	}
+	
+	// moves the children from the vector into a treap, if they are all task nodes
+	protected void toTreap()
+	{
+		for(int i=0; i<children.size(); i++)
+		{
+			if(!(children.get(i) instanceof TaskNode)){
+				return;
+			}
+		}
+		TaskNode[] nodes = new TaskNode[children.size()];
+		for(int i=0; i<nodes.length; i++){
+			nodes[i] = (TaskNode)children.get(i);
+		}
+		children = null;
+		for(TaskNode node : nodes)
+		{
+			node.left = null;
+			node.right = null;
+			node.weight = 1;
+		}
+		childRoot = build(nodes, 0, nodes.length);
+		childRoot.up = null;
+	}
+	
+	protected void toVector()
+	{
+		Vector<TreeNode> nodes = new Vector<TreeNode>(childRoot.weight);
+		for(TaskNode node=first(childRoot); node!=null; node=successor(node)){
+			nodes.add(node);
+		}
+		clearLinks(childRoot);
+		childRoot = null;
+		children = nodes;
+	}
+	
+	// builds a balanced treap from an ordered run of nodes, giving each the 
+	// highest priority in its subtree
+	protected static TaskNode build(TaskNode[] nodes, int start, int end)
+	{
+		if(start >= end){
+			return null;
+		}
+		int mid = (start+end) >>> 1;
+		TaskNode node = nodes[mid];
+		node.left = build(nodes, start, mid);
+		node.right = build(nodes, mid+1, end);
+		int priority = Integer.MIN_VALUE;
+		if(node.left!=null){
+			priority = Math.max(priority, node.left.priority);
+		}
+		if(node.right!=null){
+			priority = Math.max(priority, node.right.priority);
+		}
+		node.priority = Math.max(node.priority, priority);
+		update(node);
+		return node;
+	}
+	
+	protected static void clearLinks(TaskNode node)
+	{
+		if(node==null){
+			return;
+		}
+		clearLinks(node.left);
+		clearLinks(node.right);
+		node.left = null;
+		node.right = null;
+		node.up = null;
+		node.weight = 1;
+	}
+	
+	protected static int weightOf(TaskNode node)
+	{
+		return node==null ? 0 : node.weight;
+	}
+	
+	protected static void update(TaskNode node)
+	{
+		node.weight = weightOf(node.left) + weightOf(node.right) + 1;
+		if(node.left!=null){
+			node.left.up = node;
+		}
+		if(node.right!=null){
+			node.right.up = node;
+		}
+	}
+	
+	// splits a treap into the first count nodes and the rest
+	protected static TaskNode[] split(TaskNode node, int count)
+	{
+		if(node==null){
+			return new TaskNode[]{ null, null };
+		}
+		int leftWeight = weightOf(node.left);
+		if(count <= leftWeight)
+		{
+			TaskNode[] parts = split(node.left, count);
+			node.left = parts[1];
+			update(node);
+			if(parts[0]!=null){
+				parts[0].up = null;
+			}
+			parts[1] = node;
+			return parts;
+		}
+		else
+		{
+			TaskNode[] parts = split(node.right, count-leftWeight-1);
+			node.right = parts[0];
+			update(node);
+			if(parts[1]!=null){
+				parts[1].up = null;
+			}
+			parts[0] = node;
+			return parts;
+		}
+	}
+	
+	// joins two treaps, every node of the first coming before the second
+	protected static TaskNode merge(TaskNode a, TaskNode b)
+	{
+		if(a==null){
+			return b;
+		}
+		if(b==null){
+			return a;
+		}
+		if(a.priority > b.priority)
+		{
+			a.right = merge(a.right, b);
+			update(a);
+			return a;
+		}
+		else
+		{
+			b.left = merge(a, b.left);
+			update(b);
+			return b;
+		}
+	}
+	
+	protected static TaskNode first(TaskNode node)
+	{
+		while(node.left!=null){
+			node = node.left;
+		}
+		return node;
+	}
+	
+	protected static TaskNode successor(TaskNode node)
+	{
+		if(node.right!=null){
+			return first(node.right);
+		}
+		while(node.up!=null && node==node.up.right){
+			node = node.up;
+		}
+		return node.up;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.TreePath;
+
+/*
+ * Holds the html shown for each task in the tree, so that painting a row is a
+ * lookup rather than escaping the label and walking to the first leaf every time.
+ * Entries are dropped when the model reports a change to the task or below it. 
+ * Add it to the model after the JTree, so it hears about changes first.
+ */
+public class TaskRenderCache implements TreeModelListener
+{
+	protected static final String HINT_START = " <span style='color:silver;font-style:italic'>(";
+	protected static final String HINT_END = ")</span>";
+	
+	// nodes compare by identity, so removed tasks simply drop out
+	protected Map<Object,Entry> entries = new WeakHashMap<Object,Entry>();
+	
+	protected static class Entry
+	{
+		protected String label;
+		protected String collapsed;
+		protected String hint;
+	}
+	
+	// the html for a task, with its first leaf shown after it when it is collapsed
+	public String getText(DefaultMutableTreeNode node, boolean expanded)
+	{
+		Entry entry = getEntry(node);
+		if(expanded || node.getChildCount()==0)
+		{
+			if(entry.label==null){
+				entry.label = "<html>"+escape(String.valueOf(node.getUserObject()))+"</html>";
+			}
+			return entry.label;
+		}
+		if(entry.collapsed==null)
+		{
+			entry.collapsed = "<html>"+escape(String.valueOf(node.getUserObject()))
+					+HINT_START+escape(getHint(node, false))+HINT_END+"</html>";
+		}
+		return entry.collapsed;
+	}
+	
+	// the plain label of the first leaf, shown beside a collapsed task, or null if
+	// nothing is shown
+	public String getHint(DefaultMutableTreeNode node, boolean expanded)
+	{
+		if(expanded || node.getChildCount()==0){
+			return null;
+		}
+		Entry entry = getEntry(node);
+		if(entry.hint==null){
+			entry.hint = String.valueOf(node.getFirstLeaf().getUserObject());
+		}
+		return entry.hint;
+	}
+	
+	protected Entry getEntry(DefaultMutableTreeNode node)
+	{
+		Entry entry = entries.get(node);
+		if(entry==null)
+		{
+			entry = new Entry();
+			entries.put(node, entry);
+		}
+		return entry;
+	}
+	
+	public void clear()
+	{
+		entries.clear();
+	}
+	
+	public static String escape(String text)
+	{
+		StringBuilder escaped = null;
+		for(int i=0; i<text.length(); i++)
+		{
+			String replacement;
+			switch(text.charAt(i))
+			{
+				case '&': replacement = "&amp;"; break;
+				case '<': replacement = "&lt;"; break;
+				case '>': replacement = "&gt;"; break;
+				case '"': replacement = "&quot;"; break;
+				default: replacement = null;
+			}
+			if(replacement!=null && escaped==null)
+			{
+				escaped = new StringBuilder(text.length()+16);
+				escaped.append(text, 0, i);
+			}
+			if(replacement!=null){
+				escaped.append(replacement);
+			}else if(escaped!=null){
+				escaped.append(text.charAt(i));
+			}
+		}
+		return escaped!=null ? escaped.toString() : text;
+	}
+	
+	// a change below a task can alter the first leaf shown beside it or any of 
+	// its ancestors
+	protected void invalidatePath(TreePath path)
+	{
+		for(; path!=null; path=path.getParentPath()){
+			entries.remove(path.getLastPathComponent());
+		}
+	}
+	
+	public void treeNodesChanged(TreeModelEvent e)
+	{
+		invalidatePath(e.getTreePath());
+		Object[] children = e.getChildren();
+		for(int i=0; children!=null && i<children.length; i++){
+			entries.remove(children[i]);
+		}
+	}
+	
+	public void treeNodesInserted(TreeModelEvent e)
+	{
+		invalidatePath(e.getTreePath());
+	}
+	
+	// removed branches keep their entries, which are still right if they are
+	// put back elsewhere
+	public void treeNodesRemoved(TreeModelEvent e)
+	{
+		invalidatePath(e.getTreePath());
+	}
+	
+	// anything in the branch may have been replaced
+	public void treeStructureChanged(TreeModelEvent e)
+	{
+		clear();
+	}
+}
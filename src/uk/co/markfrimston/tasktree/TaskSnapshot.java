@@ -0,0 +1,388 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+/*
+ * Binary copy of a tasks.xml checkpoint, for fast startup. The header records
+ * the length, CRC and modification time of the xml file it was made from, and
+ * is only used while all three still match. It is followed by a table of 
+ * distinct labels and then a preorder encoding of the tree, with one fixed 
+ * size record per task holding its label index, child count, the length in 
+ * bytes of the records for its descendants and its id. Tasks are read lazily: 
+ * see LazyTaskNode.
+ */
+public class TaskSnapshot
+{
+	protected static final int MAGIC = 0x54545332;
+	protected static final int RECORD_LENGTH = 20;
+	
+	protected ByteBuffer buffer;
+	protected long xmlLength;
+	protected long xmlCrc;
+	protected long xmlModified;
+	protected int[] labelOffsets;
+	protected String[] labels;
+	protected int nodesStart;
+	protected LabelPool labelPool;
+	protected TaskIdMap taskIds;
+	
+	protected TaskSnapshot(ByteBuffer buffer, LabelPool labelPool) throws IOException
+	{
+		this.buffer = buffer;
+		this.labelPool = labelPool;
+		if(buffer.getInt(0)!=MAGIC){
+			throw new IOException("Not a task snapshot");
+		}
+		xmlLength = buffer.getLong(4);
+		xmlCrc = buffer.getLong(12);
+		xmlModified = buffer.getLong(20);
+		int labelCount = buffer.getInt(28);
+		labelOffsets = new int[labelCount];
+		labels = new String[labelCount];
+		int pos = 32;
+		for(int i=0; i<labelCount; i++)
+		{
+			labelOffsets[i] = pos;
+			pos += 4+buffer.getInt(pos);
+		}
+		nodesStart = pos;
+		if(nodesStart + RECORD_LENGTH + getSubtreeLength(nodesStart) != buffer.limit()){
+			throw new IOException("Truncated task snapshot");
+		}
+	}
+	
+	public static TaskSnapshot open(File file) throws IOException
+	{
+		return open(file, null);
+	}
+	
+	// labels are interned in the given pool as they are decoded
+	public static TaskSnapshot open(File file, LabelPool labelPool) throws IOException
+	{
+		FileInputStream stream = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = stream.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new TaskSnapshot(buffer, labelPool);
+		}
+		catch(IndexOutOfBoundsException e)
+		{
+			throw new IOException("Truncated task snapshot");
+		}
+		finally
+		{
+			// the mapping stays valid after the channel is closed
+			stream.close();
+		}
+	}
+	
+	// whether this snapshot was made from the given xml file as it is now. The
+	// length and time rule out most changes cheaply, and the CRC catches a file
+	// rewritten with the same length within the clock's resolution.
+	public boolean isCurrent(File xmlFile)
+	{
+		if(!xmlFile.exists() || xmlFile.length()!=xmlLength 
+				|| xmlFile.lastModified()!=xmlModified){
+			return false;
+		}
+		try{
+			return checksum(xmlFile)==xmlCrc;
+		}catch(IOException e){
+			return false;
+		}
+	}
+	
+	protected static long checksum(File file) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[8192];
+		FileInputStream stream = new FileInputStream(file);
+		try
+		{
+			int read;
+			while((read = stream.read(buffer)) >= 0){
+				crc.update(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+		return crc.getValue();
+	}
+	
+	public long getXmlLength()
+	{
+		return xmlLength;
+	}
+	
+	public long getXmlCrc()
+	{
+		return xmlCrc;
+	}
+	
+	// adds the snapshot's top level tasks to the given node. Their own children 
+	// are left undecoded until they are needed, and are added to the id map as 
+	// they are decoded
+	public void readInto(DefaultMutableTreeNode root, TaskIdMap taskIds)
+	{
+		this.taskIds = taskIds;
+		addChildren(root, nodesStart);
+	}
+	
+	protected void addChildren(DefaultMutableTreeNode treeNode, int record)
+	{
+		int childCount = getChildCount(record);
+		int child = record + RECORD_LENGTH;
+		for(int i=0; i<childCount; i++)
+		{
+			LazyTaskNode node = new LazyTaskNode(this, child);
+			treeNode.add(node);
+			if(taskIds!=null){
+				taskIds.put(node.getId(), node);
+			}
+			child += RECORD_LENGTH + getSubtreeLength(child);
+		}
+	}
+	
+	protected String getLabel(int record)
+	{
+		int index = buffer.getInt(record);
+		synchronized(labels)
+		{
+			if(labels[index]==null)
+			{
+				int pos = labelOffsets[index];
+				byte[] bytes = new byte[buffer.getInt(pos)];
+				ByteBuffer slice = buffer.duplicate();
+				slice.position(pos+4);
+				slice.get(bytes);
+				try{
+					labels[index] = new String(bytes, "UTF-8");
+					if(labelPool!=null){
+						labels[index] = labelPool.intern(labels[index]);
+					}
+				}catch(UnsupportedEncodingException e){
+					throw new RuntimeException(e);
+				}
+			}
+			return labels[index];
+		}
+	}
+	
+	protected int getChildCount(int record)
+	{
+		return buffer.getInt(record+4);
+	}
+	
+	protected int getSubtreeLength(int record)
+	{
+		return buffer.getInt(record+8);
+	}
+	
+	protected long getId(int record)
+	{
+		return buffer.getLong(record+12);
+	}
+	
+	// writes the undecoded descendants of the given record as xml
+	protected void writeChildren(int record, TaskXmlWriter writer) throws IOException
+	{
+		int childCount = getChildCount(record);
+		int child = record + RECORD_LENGTH;
+		for(int i=0; i<childCount; i++)
+		{
+			writer.startTask(getId(child), getLabel(child));
+			writeChildren(child, writer);
+			writer.endTask();
+			child += RECORD_LENGTH + getSubtreeLength(child);
+		}
+	}
+	
+	// writes a snapshot of the given tree, made from the given xml file
+	public static void write(File file, TaskVersion root, File xmlFile, long xmlCrc)
+		throws IOException
+	{
+		Map<String,Integer> labelIndices = new HashMap<String,Integer>();
+		int[] records = new int[RECORD_LENGTH/4 * (countNodes(root))];
+		int[] pos = new int[]{0};
+		encode(root, -1, labelIndices, records, pos);
+		write(file, labelIndices, records, xmlFile, xmlCrc);
+	}
+	
+	public static void write(File file, TaskStore store, File xmlFile, long xmlCrc) throws IOException
+	{
+		Map<String,Integer> labelIndices = new HashMap<String,Integer>();
+		int[] records = new int[RECORD_LENGTH/4 * store.size()];
+		int[] starts = new int[store.getCapacityUsed()];
+		int pos = 0;
+		int node = TaskStore.ROOT;
+		while(true)
+		{
+			starts[node] = pos;
+			records[pos] = node==TaskStore.ROOT ? -1 : labelIndex(store.getLabel(node), labelIndices);
+			records[pos+1] = store.getChildCount(node);
+			records[pos+3] = (int)(store.getId(node) >>> 32);
+			records[pos+4] = (int)store.getId(node);
+			pos += RECORD_LENGTH/4;
+			if(store.getFirstChild(node) != TaskStore.NONE)
+			{
+				node = store.getFirstChild(node);
+				continue;
+			}
+			// fill in subtree lengths on the way back up
+			while(true)
+			{
+				records[starts[node]+2] = (pos-starts[node])*4 - RECORD_LENGTH;
+				if(node==TaskStore.ROOT || store.getNextSibling(node) != TaskStore.NONE){
+					break;
+				}
+				node = store.getParent(node);
+			}
+			if(node==TaskStore.ROOT){
+				break;
+			}
+			node = store.getNextSibling(node);
+		}
+		write(file, labelIndices, records, xmlFile, xmlCrc);
+	}
+	
+	protected static void write(File file, Map<String,Integer> labelIndices, int[] records,
+			File xmlFile, long xmlCrc) throws IOException
+	{
+		String[] labels = new String[labelIndices.size()];
+		for(Map.Entry<String,Integer> entry : labelIndices.entrySet()){
+			labels[entry.getValue()] = entry.getKey();
+		}
+		
+		AtomicFile atomicFile = new AtomicFile(file, false);
+		FileOutputStream fileStream = atomicFile.startWrite();
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+			out.writeInt(MAGIC);
+			out.writeLong(xmlFile.length());
+			out.writeLong(xmlCrc);
+			out.writeLong(xmlFile.lastModified());
+			out.writeInt(labels.length);
+			for(String label : labels)
+			{
+				byte[] bytes = label.getBytes("UTF-8");
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			for(int i=0; i<records.length; i++){
+				out.writeInt(records[i]);
+			}
+			out.flush();
+			atomicFile.finishWrite(fileStream);
+		}
+		catch(IOException e)
+		{
+			atomicFile.failWrite(fileStream);
+			throw e;
+		}
+	}
+	
+	protected static int countNodes(TaskVersion node)
+	{
+		if(!node.isDecoded()){
+			return 1 + node.getSnapshot().getSubtreeLength(node.getRecord())/RECORD_LENGTH;
+		}
+		int count = 1;
+		for(int i=0; i<node.getChildCount(); i++){
+			count += countNodes(node.getChildAt(i));
+		}
+		return count;
+	}
+	
+	protected static void encode(TaskVersion node, int labelIndex, Map<String,Integer> labelIndices, 
+			int[] records, int[] pos)
+	{
+		int start = pos[0];
+		pos[0] += RECORD_LENGTH/4;
+		
+		// undecoded subtrees are copied across without building their nodes
+		if(!node.isDecoded())
+		{
+			TaskSnapshot snapshot = node.getSnapshot();
+			int record = node.getRecord();
+			int end = record + RECORD_LENGTH + snapshot.getSubtreeLength(record);
+			for(int from=record; from<end; from+=RECORD_LENGTH)
+			{
+				int to = start + (from-record)/4;
+				records[to] = from==record ? labelIndex 
+						: labelIndex(snapshot.getLabel(from), labelIndices);
+				records[to+1] = snapshot.getChildCount(from);
+				records[to+2] = snapshot.getSubtreeLength(from);
+				records[to+3] = (int)(snapshot.getId(from) >>> 32);
+				records[to+4] = (int)snapshot.getId(from);
+			}
+			pos[0] = start + (end-record)/4;
+			return;
+		}
+		
+		for(int i=0; i<node.getChildCount(); i++)
+		{
+			TaskVersion child = node.getChildAt(i);
+			encode(child, labelIndex(child.getLabel(), labelIndices), labelIndices, records, pos);
+		}
+		records[start] = labelIndex;
+		records[start+1] = node.getChildCount();
+		records[start+2] = (pos[0]-start)*4 - RECORD_LENGTH;
+		records[start+3] = (int)(node.getId() >>> 32);
+		records[start+4] = (int)node.getId();
+	}
+	
+	protected static int labelIndex(String label, Map<String,Integer> labelIndices)
+	{
+		Integer index = labelIndices.get(label);
+		if(index==null)
+		{
+			index = labelIndices.size();
+			labelIndices.put(label, index);
+		}
+		return index;
+	}
+}
@@ -0,0 +1,330 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+/*
+ * Task tree held in parallel int arrays rather than as node objects. Each task
+ * is an index into the arrays, linked to its parent, first and last children 
+ * and neighbouring siblings. Removed slots are chained into a free list and 
+ * reused. Slot 0 is the root, which has no label or id.
+ *
+ * Only journal compaction uses it, as a private working copy of the tasks on 
+ * disk. The live tree stays made of TaskNodes, since views, undo, the journal 
+ * and sync all keep hold of its nodes.
+ */
+public class TaskStore
+{
+	public static final int NONE = -1;
+	public static final int ROOT = 0;
+	protected static final int INITIAL_CAPACITY = 64;
+	
+	protected int[] parents;
+	protected int[] firstChildren;
+	protected int[] lastChildren;
+	protected int[] nextSiblings;
+	protected int[] prevSiblings;
+	protected int[] childCounts;
+	protected String[] labels;
+	protected long[] ids;
+	protected int used = 0;
+	protected int size = 0;
+	protected int freeList = NONE;
+	
+	public TaskStore()
+	{
+		this(INITIAL_CAPACITY);
+	}
+	
+	public TaskStore(int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+		parents = new int[capacity];
+		firstChildren = new int[capacity];
+		lastChildren = new int[capacity];
+		nextSiblings = new int[capacity];
+		prevSiblings = new int[capacity];
+		childCounts = new int[capacity];
+		labels = new String[capacity];
+		ids = new long[capacity];
+		allocate(null, 0L);
+	}
+	
+	// number of tasks, including the root
+	public int size()
+	{
+		return size;
+	}
+	
+	// one more than the highest task index in use
+	public int getCapacityUsed()
+	{
+		return used;
+	}
+	
+	public String getLabel(int node)
+	{
+		return labels[node];
+	}
+	
+	public void setLabel(int node, String label)
+	{
+		labels[node] = label;
+	}
+	
+	public long getId(int node)
+	{
+		return ids[node];
+	}
+	
+	public int getParent(int node)
+	{
+		return parents[node];
+	}
+	
+	public int getFirstChild(int node)
+	{
+		return firstChildren[node];
+	}
+	
+	public int getNextSibling(int node)
+	{
+		return nextSiblings[node];
+	}
+	
+	public int getChildCount(int node)
+	{
+		return childCounts[node];
+	}
+	
+	public int getChildAt(int parent, int index)
+	{
+		int count = childCounts[parent];
+		if(index < 0 || index >= count){
+			throw new ArrayIndexOutOfBoundsException(index+" >= "+count);
+		}
+		// walk from whichever end is nearer
+		int child;
+		if(index <= count/2)
+		{
+			child = firstChildren[parent];
+			for(int i=0; i<index; i++){
+				child = nextSiblings[child];
+			}
+		}
+		else
+		{
+			child = lastChildren[parent];
+			for(int i=count-1; i>index; i--){
+				child = prevSiblings[child];
+			}
+		}
+		return child;
+	}
+	
+	public int getIndex(int node)
+	{
+		int index = 0;
+		for(int sibling=prevSiblings[node]; sibling!=NONE; sibling=prevSiblings[sibling]){
+			index ++;
+		}
+		return index;
+	}
+	
+	public boolean isDescendant(int node, int ancestor)
+	{
+		for(int current=node; current!=NONE; current=parents[current])
+		{
+			if(current==ancestor){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	// adds a task as the last child of the given one
+	public int add(int parent, String label, long id)
+	{
+		int node = allocate(label, id);
+		link(node, parent, childCounts[parent]);
+		return node;
+	}
+	
+	public int insert(int parent, int index, String label, long id)
+	{
+		if(index < 0 || index > childCounts[parent]){
+			throw new ArrayIndexOutOfBoundsException(index+" > "+childCounts[parent]);
+		}
+		int node = allocate(label, id);
+		link(node, parent, index);
+		return node;
+	}
+	
+	public void move(int node, int parent, int index)
+	{
+		if(node==ROOT || isDescendant(parent, node)){
+			throw new IllegalArgumentException("Cannot move task into itself");
+		}
+		// the index is counted without the task, which is only unlinked once the 
+		// index is known to be good
+		int limit = childCounts[parent] - (parents[node]==parent ? 1 : 0);
+		if(index < 0 || index > limit){
+			throw new ArrayIndexOutOfBoundsException(index+" > "+limit);
+		}
+		unlink(node);
+		link(node, parent, index);
+	}
+	
+	// removes a task and all its descendants
+	public void remove(int node)
+	{
+		if(node==ROOT){
+			throw new IllegalArgumentException("Cannot remove root");
+		}
+		unlink(node);
+		
+		// free the subtree bottom up, detaching each child from its parent as the
+		// walk descends into it so that no stack is needed
+		int current = node;
+		while(true)
+		{
+			int child = firstChildren[current];
+			if(child != NONE)
+			{
+				firstChildren[current] = nextSiblings[child];
+				current = child;
+				continue;
+			}
+			int parent = parents[current];
+			release(current);
+			if(current==node){
+				return;
+			}
+			current = parent;
+		}
+	}
+	
+	protected int allocate(String label, long id)
+	{
+		int node;
+		if(freeList != NONE)
+		{
+			node = freeList;
+			freeList = nextSiblings[node];
+		}
+		else
+		{
+			if(used == parents.length){
+				grow();
+			}
+			node = used++;
+		}
+		parents[node] = NONE;
+		firstChildren[node] = NONE;
+		lastChildren[node] = NONE;
+		nextSiblings[node] = NONE;
+		prevSiblings[node] = NONE;
+		childCounts[node] = 0;
+		labels[node] = label;
+		ids[node] = id;
+		size ++;
+		return node;
+	}
+	
+	protected void release(int node)
+	{
+		labels[node] = null;
+		parents[node] = NONE;
+		nextSiblings[node] = freeList;
+		freeList = node;
+		size --;
+	}
+	
+	protected void grow()
+	{
+		int capacity = parents.length * 2;
+		parents = copyOf(parents, capacity);
+		firstChildren = copyOf(firstChildren, capacity);
+		lastChildren = copyOf(lastChildren, capacity);
+		nextSiblings = copyOf(nextSiblings, capacity);
+		prevSiblings = copyOf(prevSiblings, capacity);
+		childCounts = copyOf(childCounts, capacity);
+		String[] newLabels = new String[capacity];
+		System.arraycopy(labels, 0, newLabels, 0, labels.length);
+		labels = newLabels;
+		long[] newIds = new long[capacity];
+		System.arraycopy(ids, 0, newIds, 0, ids.length);
+		ids = newIds;
+	}
+	
+	protected static int[] copyOf(int[] array, int length)
+	{
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
+	}
+	
+	protected void link(int node, int parent, int index)
+	{
+		int next = index==childCounts[parent] ? NONE : getChildAt(parent, index);
+		int prev = next==NONE ? lastChildren[parent] : prevSiblings[next];
+		parents[node] = parent;
+		nextSiblings[node] = next;
+		prevSiblings[node] = prev;
+		if(prev==NONE){
+			firstChildren[parent] = node;
+		}else{
+			nextSiblings[prev] = node;
+		}
+		if(next==NONE){
+			lastChildren[parent] = node;
+		}else{
+			prevSiblings[next] = node;
+		}
+		childCounts[parent] ++;
+	}
+	
+	protected void unlink(int node)
+	{
+		int parent = parents[node];
+		int prev = prevSiblings[node];
+		int next = nextSiblings[node];
+		if(prev==NONE){
+			firstChildren[parent] = next;
+		}else{
+			nextSiblings[prev] = next;
+		}
+		if(next==NONE){
+			lastChildren[parent] = prev;
+		}else{
+			prevSiblings[next] = prev;
+		}
+		childCounts[parent] --;
+		parents[node] = NONE;
+		nextSiblings[node] = NONE;
+		prevSiblings[node] = NONE;
+	}
+}
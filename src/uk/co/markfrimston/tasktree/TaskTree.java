@@ -25,22 +25,47 @@ OTHER DEALINGS IN THE SOFTWARE.
 
 package uk.co.markfrimston.tasktree;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeNode;
 import javax.swing.tree.TreePath;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -48,10 +73,12 @@ import javax.xml.transform.stream.StreamResult;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -66,8 +93,17 @@ public class TaskTree
 	protected static final String FILENAME = "tasks.xml";
 	protected static final String MERGE_FILENAME = "merge-temp.xml";
 	protected static final String CONFIG_FILENAME = "config.xml";
+	protected static final String JOURNAL_FILENAME = "tasks.journal";
+	protected static final String SNAPSHOT_FILENAME = "tasks.bin";
+	protected static final String EXPANDED_FILENAME = "expanded.txt";
+	protected static final String SYNC_BASE_FILENAME = "synced.xml";
+	protected static final String SYNC_PROTOCOL_HEADER = "Sync-Protocol";
+	protected static final String DELTA_PROTOCOL = "delta";
+	protected static final String ACCEPT_ENCODING = "gzip, deflate";
+	protected static final long DEFAULT_REPLAY_NANOS_PER_RECORD = 20000L;
 	protected static DocumentBuilderFactory builderFact = DocumentBuilderFactory.newInstance();
 	protected static TransformerFactory transFact = TransformerFactory.newInstance();
+	protected static XMLInputFactory inputFact = XMLInputFactory.newInstance();
 	
 	protected DefaultMutableTreeNode root;
 	protected DefaultTreeModel treeModel;
@@ -75,16 +111,46 @@ public class TaskTree
 	protected String filePath;
 	protected String saveUrl;
 	protected String loadUrl;
-	protected Long lastSyncTime = 0L;
-	protected Boolean unsynchedChanges = true;
+	protected volatile Long lastSyncTime = 0L;
+	protected volatile Boolean unsynchedChanges = true;
+	protected volatile String syncETag;
 	protected String mergeCommand;
+	protected TaskJournal.SyncPolicy journalSync = TaskJournal.SyncPolicy.PERIODIC;
+	protected TaskJournal journal;
+	protected volatile IOException journalError;
+	protected CheckpointScheduler checkpointScheduler;
+	protected SaveWorker saveWorker;
+	protected SaveErrorHandler saveErrorHandler;
+	protected volatile boolean configChanged = false;
+	protected boolean binarySnapshot = false;
+	protected boolean largeTreeView = false;
+	protected StorageCodec storageCodec = StorageCodec.NONE;
+	protected volatile StorageCodec syncCodec = StorageCodec.GZIP;
+	protected volatile int checkpointRecords = 1000;
+	protected volatile long checkpointBytes = 1024*1024;
+	protected volatile int checkpointIdleSeconds = 30;
+	protected volatile int checkpointReplayMillis = 500;
+	protected volatile long replayNanosPerRecord = DEFAULT_REPLAY_NANOS_PER_RECORD;
+	protected volatile int syncTimeoutSeconds = 60;
+	protected Object checkpointLock = new Object();
+	protected LabelPool labelPool = new LabelPool();
+	protected TaskIdMap taskIds = new TaskIdMap();
+	protected boolean undecodedTasks = false;
+	protected int idsAssigned = 0;
+	protected Batch batch;
+	// an unchanging copy of the tree, replaced after every edit
+	protected AtomicReference<TaskVersion> version = new AtomicReference<TaskVersion>();
+	// held while an edit is journaled and its version published
+	protected Object versionLock = new Object();
+	protected CommandMetrics commandMetrics = new CommandMetrics();
 	
 	public TaskTree(String filePath)
 	{
 		this.filePath = filePath;
 		
-		this.root = new DefaultMutableTreeNode("root");
+		this.root = new TaskNode("root");
 		this.treeModel = new DefaultTreeModel(root);
+		this.version.set(TaskVersion.of(root));
 	}
 	
 	public String getSaveUrl()
@@ -127,6 +193,16 @@ public class TaskTree
 		this.unsynchedChanges = unsynchedChanges;
 	}
 
+	public String getSyncETag()
+	{
+		return syncETag;
+	}
+
+	public void setSyncETag(String syncETag)
+	{
+		this.syncETag = syncETag;
+	}
+
 	public String getMergeCommand()
 	{
 		return mergeCommand;
@@ -137,6 +213,150 @@ public class TaskTree
 		this.mergeCommand = mergeCommand;
 	}
 
+	public TaskJournal.SyncPolicy getJournalSync()
+	{
+		return journalSync;
+	}
+
+	public void setJournalSync(TaskJournal.SyncPolicy journalSync)
+	{
+		this.journalSync = journalSync;
+		if(journal!=null){
+			journal.setSyncPolicy(journalSync);
+		}
+	}
+
+	public boolean getBinarySnapshot()
+	{
+		return binarySnapshot;
+	}
+
+	public void setBinarySnapshot(boolean binarySnapshot)
+	{
+		this.binarySnapshot = binarySnapshot;
+	}
+
+	public boolean getLargeTreeView()
+	{
+		return largeTreeView;
+	}
+
+	public void setLargeTreeView(boolean largeTreeView)
+	{
+		this.largeTreeView = largeTreeView;
+	}
+
+	public StorageCodec getStorageCodec()
+	{
+		return storageCodec;
+	}
+
+	public void setStorageCodec(StorageCodec storageCodec)
+	{
+		this.storageCodec = storageCodec;
+	}
+
+	public StorageCodec getSyncCodec()
+	{
+		return syncCodec;
+	}
+
+	public void setSyncCodec(StorageCodec syncCodec)
+	{
+		this.syncCodec = syncCodec;
+	}
+
+	public LabelPool getLabelPool()
+	{
+		return labelPool;
+	}
+
+	public SaveErrorHandler getSaveErrorHandler()
+	{
+		return saveErrorHandler;
+	}
+
+	public void setSaveErrorHandler(SaveErrorHandler saveErrorHandler)
+	{
+		this.saveErrorHandler = saveErrorHandler;
+		if(saveWorker!=null){
+			saveWorker.setErrorHandler(saveErrorHandler);
+		}
+	}
+
+	public TaskJournal getJournal()
+	{
+		return journal;
+	}
+
+	public int getCheckpointRecords()
+	{
+		return checkpointRecords;
+	}
+
+	public void setCheckpointRecords(int checkpointRecords)
+	{
+		this.checkpointRecords = checkpointRecords;
+	}
+
+	public long getCheckpointBytes()
+	{
+		return checkpointBytes;
+	}
+
+	public void setCheckpointBytes(long checkpointBytes)
+	{
+		this.checkpointBytes = checkpointBytes;
+	}
+
+	public int getCheckpointIdleSeconds()
+	{
+		return checkpointIdleSeconds;
+	}
+
+	public void setCheckpointIdleSeconds(int checkpointIdleSeconds)
+	{
+		this.checkpointIdleSeconds = checkpointIdleSeconds;
+	}
+	
+	public int getSyncTimeoutSeconds()
+	{
+		return syncTimeoutSeconds;
+	}
+	
+	public void setSyncTimeoutSeconds(int syncTimeoutSeconds)
+	{
+		this.syncTimeoutSeconds = syncTimeoutSeconds;
+	}
+
+	public int getCheckpointReplayMillis()
+	{
+		return checkpointReplayMillis;
+	}
+
+	public void setCheckpointReplayMillis(int checkpointReplayMillis)
+	{
+		this.checkpointReplayMillis = checkpointReplayMillis;
+	}
+	
+	// how long replaying the journal would take if we were restarted now
+	public long getEstimatedReplayMillis()
+	{
+		TaskJournal journal = this.journal;
+		if(journal==null){
+			return 0L;
+		}
+		return journal.getRecordCount() * replayNanosPerRecord / 1000000L;
+	}
+	
+	protected void recordReplayTime(int records, long nanos)
+	{
+		// small replays are dominated by file open costs
+		if(records >= 100){
+			replayNanosPerRecord = Math.max(1L, nanos/records);
+		}
+	}
+
 	public DefaultMutableTreeNode getRoot()
 	{
 		return root;
@@ -145,6 +365,39 @@ public class TaskTree
 	public void setRoot(DefaultMutableTreeNode root)
 	{
 		this.root = root;
+		taskIds.clear();
+		undecodedTasks = false;
+		indexTasks(root, true);
+		version.set(TaskVersion.of(root));
+	}
+	
+	// the tree as of the last edit. It never changes, so it can be read from 
+	// any thread while the live tree is edited.
+	public TaskVersion getVersion()
+	{
+		return version.get();
+	}
+	
+	// looks a task up by its id, in constant time once all tasks are decoded
+	public DefaultMutableTreeNode getTask(long id)
+	{
+		DefaultMutableTreeNode node = taskIds.get(id);
+		if(node==null && undecodedTasks)
+		{
+			// the id may be in a branch not yet read from the snapshot
+			Enumeration<?> all = root.preorderEnumeration();
+			while(all.hasMoreElements()){
+				all.nextElement();
+			}
+			undecodedTasks = false;
+			node = taskIds.get(id);
+		}
+		return node;
+	}
+	
+	public long getTaskId(TreeNode node)
+	{
+		return node instanceof TaskNode ? ((TaskNode)node).getId() : 0L;
 	}
 	
 	public DefaultTreeModel getTreeModel()
@@ -152,22 +405,232 @@ public class TaskTree
 		return treeModel;
 	}
 	
+	public CommandMetrics getCommandMetrics()
+	{
+		return commandMetrics;
+	}
+	
 	public void changesMade() throws Exception
 	{
+		// a batch saves once, when it is committed
+		if(batch!=null)
+		{
+			batch.changesMade = true;
+			return;
+		}
+		if(!Boolean.TRUE.equals(unsynchedChanges)){
+			configChanged = true;
+		}
 		unsynchedChanges = true;
-		save();
-		saveConfig();
+		
+		// edits are already buffered in the journal - the save worker writes them
+		// out in the background. Only save here if the journal is unusable.
+		if(journal==null || journalError!=null)
+		{
+			journalError = null;
+			save();
+		}
+		if(saveWorker!=null){
+			saveWorker.markDirty();
+		}else if(configChanged){
+			configChanged = false;
+			saveConfig();
+		}
+	}
+	
+	// writes out buffered changes. Called from the save worker.
+	protected void persist() throws Exception
+	{
+		TaskJournal journal = this.journal;
+		if(journal!=null)
+		{
+			try{
+				journal.flush();
+			}catch(IOException e){
+				// the buffered edits may be lost, so the next change saves in full
+				journalError = e;
+				throw new Exception("Failed to write journal: "+e.getMessage());
+			}
+		}
+		if(configChanged)
+		{
+			configChanged = false;
+			saveConfig();
+		}
+		if(checkpointScheduler!=null){
+			checkpointScheduler.poke();
+		}
 	}
 	
+	// blocks until all changes made so far have been written
+	public void flush() throws Exception
+	{
+		if(saveWorker!=null){
+			saveWorker.flush();
+		}else if(journal!=null){
+			journal.flush();
+		}
+	}
+	
+	// Edits to the tree aren't checked for the thread they are made on. Once the 
+	// tree is shown they must only be made on the event thread, so other threads
+	// should make them through submit or call. A tree nothing else can see, as in
+	// a test, can be edited from the thread that owns it.
 	public DefaultMutableTreeNode addTask(DefaultMutableTreeNode parent, int childPos, 
 			String name)
 	{
-		DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(name);
-		treeModel.insertNodeInto(newNode, parent, childPos);
+		return addTask(parent, childPos, name, 0L);
+	}
+	
+	// adds a task keeping the given id, unless it has none or it is taken
+	protected DefaultMutableTreeNode addTask(DefaultMutableTreeNode parent, int childPos, 
+			String name, long id)
+	{
+		if(id==0L || taskIds.get(id)!=null){
+			id = taskIds.newUnusedId();
+		}
+		final DefaultMutableTreeNode newNode;
+		synchronized(versionLock)
+		{
+			if(journal!=null)
+			{
+				try{
+					journal.logAdd(parent, childPos, name, id);
+				}catch(IOException e){
+					journalError = e;
+				}
+			}
+			newNode = insertTask(parent, childPos, name, id);
+		}
+		logUndo(new Runnable(){
+			public void run(){
+				removeTask(newNode);
+			}
+		});
+		return newNode;
+	}
+	
+	// adds a task without journaling it
+	protected DefaultMutableTreeNode insertTask(DefaultMutableTreeNode parent, int childPos, 
+			String name, long id)
+	{
+		TaskNode newNode = createTask(name, id, taskIds);
+		insertNode(newNode, parent, childPos);
+		return newNode;
+	}
+	
+	// makes a task and adds it to the given id map, without putting it in a tree.
+	// It gets a new id if it has none or the id is already taken.
+	protected TaskNode createTask(String name, long id, TaskIdMap ids)
+	{
+		if(id==0L || ids.get(id)!=null)
+		{
+			id = ids.newUnusedId();
+			idsAssigned ++;
+		}
+		TaskNode newNode = new TaskNode(labelPool.intern(name));
+		newNode.setId(id);
+		ids.put(id, newNode);
 		return newNode;
 	}
 	
+	// swaps in a tree built away from the model, so that views are told about 
+	// the whole thing at once rather than once per task
+	protected void installRoot(DefaultMutableTreeNode newRoot, TaskIdMap ids)
+	{
+		root = newRoot;
+		taskIds = ids;
+		undecodedTasks = false;
+		version.set(TaskVersion.of(newRoot));
+		treeModel.setRoot(newRoot);
+	}
+	
+	// adds or removes a branch's decoded tasks in the id map, giving an id to 
+	// any task without a usable one
+	protected void indexTasks(DefaultMutableTreeNode treeNode, boolean add)
+	{
+		List<DefaultMutableTreeNode> pending = new ArrayList<DefaultMutableTreeNode>();
+		pending.add(treeNode);
+		while(!pending.isEmpty())
+		{
+			DefaultMutableTreeNode node = pending.remove(pending.size()-1);
+			if(node instanceof TaskNode && node!=root)
+			{
+				TaskNode task = (TaskNode)node;
+				if(!add)
+				{
+					if(taskIds.get(task.getId())==task){
+						taskIds.remove(task.getId());
+					}
+				}
+				else if(taskIds.get(task.getId())!=task)
+				{
+					if(task.getId()==0L || taskIds.get(task.getId())!=null)
+					{
+						task.setId(taskIds.newUnusedId());
+						idsAssigned ++;
+					}
+					taskIds.put(task.getId(), task);
+				}
+			}
+			// undecoded branches were never indexed
+			if(node instanceof LazyTaskNode && !((LazyTaskNode)node).isMaterialised()){
+				continue;
+			}
+			for(int i=0; i<node.getChildCount(); i++){
+				pending.add((DefaultMutableTreeNode)node.getChildAt(i));
+			}
+		}
+	}
+	
 	public void synchronise(MergeConfirmer mergeConfirmer) throws Exception
+	{
+		synchronise(mergeConfirmer, null);
+	}
+	
+	public void synchronise(MergeConfirmer mergeConfirmer, SyncListener listener) throws Exception
+	{
+		synchronise(mergeConfirmer, listener, new SyncCancellation());
+	}
+	
+	// the listener, if there is one, is told as each stage of the sync starts. 
+	// Another thread can stop the sync through the cancellation, which belongs 
+	// to this run alone.
+	public void synchronise(MergeConfirmer mergeConfirmer, SyncListener listener, 
+			SyncCancellation cancellation) throws Exception
+	{
+		syncTasks(mergeConfirmer, listener, cancellation);
+	}
+	
+	protected HttpResponse executeSyncRequest(HttpClient client, HttpPost post, 
+			SyncCancellation cancellation) throws Exception
+	{
+		cancellation.setRequest(post);
+		try
+		{
+			cancellation.check();
+			try{
+				return client.execute(post);
+			}catch(IOException e){
+				cancellation.check();
+				throw e;
+			}
+		}
+		finally
+		{
+			cancellation.setRequest(null);
+		}
+	}
+	
+	protected void reportSyncProgress(SyncListener listener, String stage)
+	{
+		if(listener!=null){
+			listener.syncProgress(stage);
+		}
+	}
+	
+	protected void syncTasks(MergeConfirmer mergeConfirmer, SyncListener listener, 
+			SyncCancellation cancellation) throws Exception
 	{
 		if(loadUrl==null){
 			throw new Exception("No load URL defined");
@@ -182,49 +645,74 @@ public class TaskTree
 		Long newTimestamp = new Date().getTime(); 
 		
 		HttpClient client = new DefaultHttpClient();
+		HttpConnectionParams.setConnectionTimeout(client.getParams(), syncTimeoutSeconds*1000);
+		HttpConnectionParams.setSoTimeout(client.getParams(), syncTimeoutSeconds*1000);
 		DocumentBuilderFactory builderFact = DocumentBuilderFactory.newInstance();
 		DocumentBuilder builder = builderFact.newDocumentBuilder();			
 		
+		// tasks as they were after the last sync, for working out what has changed
+		TaskVersion base = loadSyncBase();
+		
 		// make load request
-		HttpPost post = new HttpPost(loadUrl);			
-		HttpResponse response = client.execute(post);			
-		if(response.getStatusLine().getStatusCode()!=200){
-			throw new Exception("Unexpected load response from server: "
-					+response.getStatusLine().getStatusCode()
-					+" "+response.getStatusLine().getReasonPhrase());
-		}
+		reportSyncProgress(listener, "Downloading");
+		HttpResponse response = requestLoad(client, base!=null, true, cancellation);
 		
-		// get timestamp header
-		Header[] tsHeaders = response.getHeaders("Timestamp");
+		// a server which understands deltas says so, and sends just its changes
+		Header[] protocolHeaders = response.getHeaders(SYNC_PROTOCOL_HEADER);
+		boolean delta = base!=null && protocolHeaders!=null && protocolHeaders.length>0
+				&& protocolHeaders[0].getValue().trim().equals(DELTA_PROTOCOL);
+		
+		// nothing has changed on the server since our last upload
 		Long timestamp;
-		if(tsHeaders==null || tsHeaders.length<1){
-			throw new Exception("Missing timestamp from server");
-		}			
-		try{
-			timestamp = Long.parseLong(tsHeaders[0].getValue());
-		}catch(NumberFormatException e){
-			throw new Exception("Invalid timestamp from server \""+tsHeaders[0].getValue()+"\"");
-		}			
-		if(timestamp!=0 && timestamp < lastSyncTime){
-			throw new Exception("Remote timestamp earlier than local timestamp");
+		Document doc = null;
+		if(response.getStatusLine().getStatusCode()==HttpStatus.SC_NOT_MODIFIED)
+		{
+			if(response.getEntity()!=null){
+				response.getEntity().consumeContent();
+			}
+			if(!unsynchedChanges){
+				return;
+			}
+			timestamp = lastSyncTime;
 		}
-		
-		// parse xml	
-		Document doc;			
-		try{
-			doc = builder.parse(response.getEntity().getContent());
-		}catch(Exception e){
-			throw new Exception("Failed to parse load response from server");
+		else
+		{
+			timestamp = readTimestamp(response);
+			doc = parseLoadResponse(builder, response);
+		}
+		if(delta && timestamp > lastSyncTime)
+		{
+			// the remote edits can be replayed here unless ours need merging in
+			cancellation.check();
+			TaskVersion newBase = unsynchedChanges ? null : applyRemoteDelta(doc);
+			if(newBase!=null)
+			{
+				base = newBase;
+				save();
+			}
+			else
+			{
+				delta = false;
+				response = requestLoad(client, false, false, cancellation);
+				timestamp = readTimestamp(response);
+				doc = parseLoadResponse(builder, response);
+			}
 		}
 		
 		// if remote version is more up to date
-		if(timestamp > lastSyncTime)
+		if(!delta && timestamp > lastSyncTime)
 		{
 			// if local changes made, merge
 			if(unsynchedChanges)
 			{					
-				// save local tree
-				save();
+				reportSyncProgress(listener, "Merging");
+				
+				// save local tree, uncompressed so that the merge tool can read it.
+				// Loading detects the format, and the next save compresses it again
+				synchronized(checkpointLock)
+				{
+					saveCheckpoint(StorageCodec.NONE);
+				}
 				
 				// save remote tree to temp file
 				makeFilePath();
@@ -236,8 +724,18 @@ public class TaskTree
 				String commandString = StringUtils.template(mergeCommand, 
 						filePath+FILENAME, filePath+MERGE_FILENAME );
 				Process proc = Runtime.getRuntime().exec(commandString);
-				proc.waitFor();
-				proc.destroy();
+				cancellation.setProcess(proc);
+				try
+				{
+					cancellation.check();
+					proc.waitFor();
+				}
+				finally
+				{
+					cancellation.setProcess(null);
+					proc.destroy();
+				}
+				cancellation.check();
 				
 				if(!mergeConfirmer.confirmMerge())
 				{
@@ -247,13 +745,22 @@ public class TaskTree
 				// remove temp file
 				new File(filePath+MERGE_FILENAME).delete();
 				
-				// load the newly merged local tree
-				load();
+				// bring the tree up to date with the newly merged local file
+				Document merged;
+				try{
+					merged = builder.parse(new File(filePath+FILENAME));
+				}catch(Exception e){
+					throw new Exception("Failed to parse merged file");
+				}
+				cancellation.check();
+				updateOnEventThread(merged);
+				save();
 			}
 			else
 			{
 				// just load xml from remote
-				loadFromDocument(doc);
+				cancellation.check();
+				updateOnEventThread(doc);
 				
 				// save to file
 				save();
@@ -263,18 +770,34 @@ public class TaskTree
 		// save back to remote every time, to update remote with new sync timestamp.
 				
 		// write xml to byte array
-		doc = saveToDocument();
+		final TaskVersion uploaded = version.get();
+		if(delta){
+			doc = TaskDelta.between(base, uploaded).toDocument();
+		}else{
+			doc = saveToDocument(uploaded);
+		}
+		// compressed as it is written, if the server has said it can read it
+		StorageCodec uploadCodec = chooseUploadCodec(response);
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		writeDocToStream(doc,baos);
+		OutputStream codecStream = uploadCodec.wrap(baos);
+		writeDocToStream(doc,codecStream);
+		StorageCodec.finish(codecStream);
 		baos.close();
 
 		// make save request				
-		post = new HttpPost(saveUrl);
+		HttpPost post = new HttpPost(saveUrl);
 		post.addHeader("Timestamp",String.valueOf(newTimestamp));
+		if(delta){
+			post.addHeader(SYNC_PROTOCOL_HEADER, DELTA_PROTOCOL);
+		}
 		ByteArrayEntity bare = new ByteArrayEntity(baos.toByteArray());
 		bare.setContentType("application/xml");
+		if(uploadCodec!=StorageCodec.NONE){
+			bare.setContentEncoding(uploadCodec.getContentEncoding());
+		}
 		post.setEntity(bare);
-		response = client.execute(post);
+		reportSyncProgress(listener, "Uploading");
+		response = executeSyncRequest(client, post, cancellation);
 		if(response.getStatusLine().getStatusCode()!=200){
 			throw new Exception("Unexpected save response from server: "
 					+response.getStatusLine().getStatusCode()
@@ -284,7 +807,7 @@ public class TaskTree
 		// server should echo back same xml to confirm
 		Document echoDoc;
 		try{
-			echoDoc = builder.parse(response.getEntity().getContent());
+			echoDoc = builder.parse(openResponse(response));
 		}catch(Exception e){
 			throw new Exception("Failed to parse save response from server");
 		}
@@ -292,58 +815,457 @@ public class TaskTree
 			throw new Exception("Bad save response from server");
 		}						
 		
-		unsynchedChanges = false;
-		lastSyncTime = newTimestamp;
+		// lets the next load be skipped if neither side changes
+		Header[] eTagHeaders = response.getHeaders("ETag");
+		syncETag = eTagHeaders!=null && eTagHeaders.length>0 ? eTagHeaders[0].getValue().trim() : null;
+		
+		saveSyncBase(uploaded);
+		
+		// edits made during the upload still need syncing
+		final Long syncTime = newTimestamp;
+		call(new TaskCommand<Void>(){
+			public Void run(TaskTree taskTree)
+			{
+				unsynchedChanges = version.get()!=uploaded;
+				lastSyncTime = syncTime;
+				return null;
+			}
+		});
 		
 		// save config
 		saveConfig();
+		
+		// a completed sync is a natural point to fold the journal
+		if(checkpointScheduler!=null){
+			checkpointScheduler.requestCheckpoint();
+		}
 	}
 	
-	public void save() throws Exception
+	// asks for the remote tasks, or with a sync base, for the remote changes 
+	// made since the last sync. A conditional request lets the server answer 
+	// "not modified" if its tasks are still the ones we last uploaded.
+	protected HttpResponse requestLoad(HttpClient client, boolean delta, boolean conditional, 
+			SyncCancellation cancellation) throws Exception
 	{
-		try
+		HttpPost post = new HttpPost(loadUrl);
+		post.addHeader("Accept-Encoding", ACCEPT_ENCODING);
+		if(delta)
 		{
-			Document doc = saveToDocument();
-			makeFilePath();
-			File file = new File(filePath+FILENAME);
-			FileOutputStream fileStream = new FileOutputStream(file);
-			writeDocToStream(doc, fileStream);
-			fileStream.close();
+			post.addHeader(SYNC_PROTOCOL_HEADER, DELTA_PROTOCOL);
+			post.addHeader("Since", String.valueOf(lastSyncTime));
 		}
-		catch(Exception e)
-		{
-			throw new Exception("Failed to save file: "+e.getClass().getName()+" - "+e.getMessage());
-		}		
+		String eTag = syncETag;
+		if(conditional && eTag!=null){
+			post.addHeader("If-None-Match", eTag);
+		}
+		HttpResponse response = executeSyncRequest(client, post, cancellation);			
+		int status = response.getStatusLine().getStatusCode();
+		if(status!=HttpStatus.SC_OK && !(conditional && eTag!=null && status==HttpStatus.SC_NOT_MODIFIED)){
+			throw new Exception("Unexpected load response from server: "
+					+response.getStatusLine().getStatusCode()
+					+" "+response.getStatusLine().getReasonPhrase());
+		}
+		return response;
 	}
 	
-	protected Document saveToDocument() throws Exception
+	protected Long readTimestamp(HttpResponse response) throws Exception
 	{
-		DocumentBuilder builder = builderFact.newDocumentBuilder();
-		Document doc = builder.newDocument();
-		Element taskList = doc.createElement("tasklist");
-		doc.appendChild(taskList);		
-		taskList.appendChild(doc.createTextNode("\n\t"));
-		Element tasks = doc.createElement("tasks");
-		taskList.appendChild(tasks);
-		taskList.appendChild(doc.createTextNode("\n"));
-		addChildElementsFromTasks(doc,tasks,root,1);
-		
+		Header[] tsHeaders = response.getHeaders("Timestamp");
+		Long timestamp;
+		if(tsHeaders==null || tsHeaders.length<1){
+			throw new Exception("Missing timestamp from server");
+		}			
+		try{
+			timestamp = Long.parseLong(tsHeaders[0].getValue());
+		}catch(NumberFormatException e){
+			throw new Exception("Invalid timestamp from server \""+tsHeaders[0].getValue()+"\"");
+		}			
+		if(timestamp!=0 && timestamp < lastSyncTime){
+			throw new Exception("Remote timestamp earlier than local timestamp");
+		}
+		return timestamp;
+	}
+	
+	// decompresses the response body as it is read
+	protected InputStream openResponse(HttpResponse response) throws Exception
+	{
+		InputStream in = response.getEntity().getContent();
+		Header[] encodingHeaders = response.getHeaders("Content-Encoding");
+		if(encodingHeaders==null || encodingHeaders.length==0){
+			return in;
+		}
+		StorageCodec codec = StorageCodec.forContentEncoding(encodingHeaders[0].getValue().trim());
+		if(codec==null){
+			throw new Exception("Unsupported content encoding \""+encodingHeaders[0].getValue()+"\"");
+		}
+		return codec.wrap(in);
+	}
+	
+	// the configured codec if the server accepts it, going by the encodings it
+	// listed or used in the load response, otherwise another it accepts
+	protected StorageCodec chooseUploadCodec(HttpResponse loadResponse)
+	{
+		if(syncCodec==StorageCodec.NONE){
+			return StorageCodec.NONE;
+		}
+		Set<StorageCodec> accepted = new HashSet<StorageCodec>();
+		for(Header header : loadResponse.getHeaders("Accept-Encoding")){
+			addCodecs(header.getValue(), accepted);
+		}
+		for(Header header : loadResponse.getHeaders("Content-Encoding")){
+			addCodecs(header.getValue(), accepted);
+		}
+		if(accepted.contains(syncCodec)){
+			return syncCodec;
+		}
+		if(accepted.contains(StorageCodec.GZIP)){
+			return StorageCodec.GZIP;
+		}
+		if(accepted.contains(StorageCodec.FAST)){
+			return StorageCodec.FAST;
+		}
+		return StorageCodec.NONE;
+	}
+	
+	protected void addCodecs(String encodings, Set<StorageCodec> codecs)
+	{
+		for(String encoding : encodings.split(","))
+		{
+			// leave out any quality value
+			StorageCodec codec = StorageCodec.forContentEncoding(encoding.split(";")[0].trim());
+			if(codec!=null){
+				codecs.add(codec);
+			}
+		}
+	}
+	
+	protected Document parseLoadResponse(DocumentBuilder builder, HttpResponse response) 
+		throws Exception
+	{
+		try{
+			return builder.parse(openResponse(response));
+		}catch(Exception e){
+			throw new Exception("Failed to parse load response from server");
+		}
+	}
+	
+	// makes the server's edits to the tree, returning the resulting version. If 
+	// they don't fit the tree, nothing is changed and null is returned.
+	protected TaskVersion applyRemoteDelta(Document doc)
+	{
+		try
+		{
+			final TaskDelta remote = TaskDelta.fromDocument(doc);
+			return call(new TaskCommand<TaskVersion>(){
+				public TaskVersion run(TaskTree taskTree) throws Exception
+				{
+					remote.applyTo(taskTree);
+					return version.get();
+				}
+			});
+		}
+		catch(Exception e)
+		{
+			return null;
+		}
+	}
+	
+	// returns the tasks as they were last synced, or null if they aren't known
+	protected TaskVersion loadSyncBase()
+	{
+		File file = new File(filePath+SYNC_BASE_FILENAME);
+		if(!file.exists()){
+			return null;
+		}
+		try
+		{
+			Document doc = builderFact.newDocumentBuilder().parse(file);
+			Iterator<Element> i = getElementChildren(doc.getDocumentElement());
+			return i.hasNext() ? readSyncBase(i.next(), "root", 0L) : null;
+		}
+		catch(Exception e)
+		{
+			return null;
+		}
+	}
+	
+	protected TaskVersion readSyncBase(Element el, String label, long id) throws Exception
+	{
+		List<TaskVersion> children = new ArrayList<TaskVersion>();
+		Iterator<Element> i = getElementChildren(el);
+		while(i.hasNext())
+		{
+			Element childEl = i.next();
+			long childId = TaskIdMap.parse(childEl.getAttribute("id"));
+			if(childId==0L){
+				throw new Exception("Synced task without an id");
+			}
+			children.add(readSyncBase(childEl, childEl.getAttribute("label"), childId));
+		}
+		return new TaskVersion(label, id, children.toArray(new TaskVersion[children.size()]));
+	}
+	
+	protected void saveSyncBase(TaskVersion tasks)
+	{
+		makeFilePath();
+		AtomicFile file = new AtomicFile(new File(filePath+SYNC_BASE_FILENAME), false);
+		try
+		{
+			FileOutputStream fileStream = file.startWrite();
+			try
+			{
+				new TaskXmlWriter(fileStream).writeTree(tasks);
+				file.finishWrite(fileStream);
+			}
+			catch(IOException e)
+			{
+				file.failWrite(fileStream);
+				throw e;
+			}
+		}
+		catch(IOException e)
+		{
+			// the next sync just sends everything
+			file.getFile().delete();
+		}
+	}
+	
+	// folds the journal into a new checkpoint using only the files on disk, so it
+	// never reads the live tree and can run off the event thread
+	protected void compactJournal() throws Exception
+	{
+		TaskJournal journal = this.journal;
+		if(journal==null){
+			return;
+		}
+		TaskJournal.Mark mark = journal.mark();
+		if(mark.getRecordCount()==0){
+			return;
+		}
+		File file = new File(filePath+FILENAME);
+		TaskStore folded = new TaskStore();
+		long checksum = readCheckpoint(file, folded);
+		long replayStart = System.nanoTime();
+		if(!journal.replay(file.length(), checksum, folded, mark)){
+			return;
+		}
+		recordReplayTime(mark.getRecordCount(), System.nanoTime()-replayStart);
+		
+		File tempFile = new File(filePath+FILENAME+".compact");
+		FileOutputStream fileStream = new FileOutputStream(tempFile);
+		CheckedOutputStream checkedStream = new CheckedOutputStream(fileStream, new CRC32());
+		try
+		{
+			OutputStream codecStream = storageCodec.wrap(checkedStream);
+			new TaskXmlWriter(codecStream).writeTree(folded);
+			StorageCodec.finish(codecStream);
+			fileStream.getFD().sync();
+		}
+		finally
+		{
+			checkedStream.close();
+		}
+		
+		// the journal refuses the swap if a save has reset it in the meantime
+		synchronized(checkpointLock)
+		{
+			long newChecksum = checkedStream.getChecksum().getValue();
+			if(journal.swapCheckpoint(mark, tempFile, new AtomicFile(file), tempFile.length(), 
+					newChecksum) && binarySnapshot){
+				writeSnapshot(file, newChecksum, folded);
+			}
+		}
+	}
+	
+	// returns the binary snapshot of the given tasks file, if there is an up to 
+	// date one
+	protected TaskSnapshot openSnapshot(File xmlFile)
+	{
+		File file = new File(filePath+SNAPSHOT_FILENAME);
+		if(!file.exists()){
+			return null;
+		}
+		try
+		{
+			TaskSnapshot snapshot = TaskSnapshot.open(file, labelPool);
+			return snapshot.isCurrent(xmlFile) ? snapshot : null;
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+	
+	protected void writeSnapshot(File xmlFile, long xmlCrc, TaskVersion tasks)
+	{
+		File file = new File(filePath+SNAPSHOT_FILENAME);
+		try
+		{
+			TaskSnapshot.write(file, tasks, xmlFile, xmlCrc);
+		}
+		catch(IOException e)
+		{
+			// the xml is still authoritative - just make sure a stale copy isn't used
+			file.delete();
+		}
+	}
+	
+	protected void writeSnapshot(File xmlFile, long xmlCrc, TaskStore store)
+	{
+		File file = new File(filePath+SNAPSHOT_FILENAME);
+		try
+		{
+			TaskSnapshot.write(file, store, xmlFile, xmlCrc);
+		}
+		catch(IOException e)
+		{
+			file.delete();
+		}
+	}
+	
+	public void close() throws Exception
+	{
+		if(saveWorker!=null)
+		{
+			saveWorker.flush();
+			saveWorker.requestStop();
+			saveWorker = null;
+		}
+		if(checkpointScheduler!=null)
+		{
+			checkpointScheduler.requestStop();
+			checkpointScheduler = null;
+		}
+		if(journal!=null){
+			journal.close();
+		}
+	}
+	
+	public void save() throws Exception
+	{
+		synchronized(checkpointLock)
+		{
+			saveCheckpoint(storageCodec);
+		}
+	}
+	
+	// writes the tasks as they were when the save started. Edits made while it is
+	// being written stay in the journal, after the mark.
+	protected void saveCheckpoint(StorageCodec codec) throws Exception
+	{
+		try
+		{
+			makeFilePath();
+			AtomicFile file = new AtomicFile(new File(filePath+FILENAME));
+			TaskJournal journal = this.journal;
+			TaskVersion tasks;
+			TaskJournal.Mark mark = null;
+			synchronized(versionLock)
+			{
+				tasks = version.get();
+				if(journal!=null && journal.isOpen()){
+					mark = journal.mark();
+				}
+			}
+			
+			boolean written = false;
+			long checksum = 0L;
+			if(mark!=null)
+			{
+				File tempFile = new File(filePath+FILENAME+".save");
+				FileOutputStream fileStream = new FileOutputStream(tempFile);
+				CheckedOutputStream checkedStream = new CheckedOutputStream(fileStream, new CRC32());
+				try
+				{
+					writeCheckpoint(checkedStream, codec, tasks);
+					fileStream.getFD().sync();
+				}
+				finally
+				{
+					checkedStream.close();
+				}
+				checksum = checkedStream.getChecksum().getValue();
+				written = journal.swapCheckpoint(mark, tempFile, file, tempFile.length(), checksum);
+			}
+			if(!written)
+			{
+				// without an open journal there is nothing to keep later edits in,
+				// so they wait for the write
+				synchronized(versionLock)
+				{
+					tasks = version.get();
+					FileOutputStream fileStream = file.startWrite();
+					CheckedOutputStream checkedStream = new CheckedOutputStream(fileStream, new CRC32());
+					try
+					{
+						writeCheckpoint(checkedStream, codec, tasks);
+						file.finishWrite(fileStream);
+					}
+					catch(Exception e)
+					{
+						file.failWrite(fileStream);
+						throw e;
+					}
+					checksum = checkedStream.getChecksum().getValue();
+					
+					// the new checkpoint contains every journaled edit
+					if(journal!=null){
+						journal.reset(file.getFile().length(), checksum);
+					}else{
+						new File(filePath+JOURNAL_FILENAME).delete();
+					}
+				}
+			}
+			
+			if(binarySnapshot){
+				writeSnapshot(file.getFile(), checksum, tasks);
+			}
+		}
+		catch(Exception e)
+		{
+			throw new Exception("Failed to save file: "+e.getClass().getName()+" - "+e.getMessage());
+		}		
+	}
+	
+	protected void writeCheckpoint(OutputStream stream, StorageCodec codec, TaskVersion tasks) 
+		throws IOException
+	{
+		OutputStream codecStream = codec.wrap(stream);
+		new TaskXmlWriter(codecStream).writeTree(tasks);
+		StorageCodec.finish(codecStream);
+	}
+	
+	protected Document saveToDocument(TaskVersion tasks) throws Exception
+	{
+		DocumentBuilder builder = builderFact.newDocumentBuilder();
+		Document doc = builder.newDocument();
+		Element taskList = doc.createElement("tasklist");
+		doc.appendChild(taskList);		
+		taskList.appendChild(doc.createTextNode("\n\t"));
+		Element tasksEl = doc.createElement("tasks");
+		taskList.appendChild(tasksEl);
+		taskList.appendChild(doc.createTextNode("\n"));
+		addChildElementsFromTasks(doc,tasksEl,tasks,1);
+		
 		return doc;
 	}
 	
 	protected void addChildElementsFromTasks(Document doc, Element parent, 
-			DefaultMutableTreeNode treeNode, int indent)
+			TaskVersion treeNode, int indent)
 	{
 		for(int i=0; i<treeNode.getChildCount(); i++)
 		{
-			DefaultMutableTreeNode treeChild = (DefaultMutableTreeNode)treeNode.getChildAt(i);
+			TaskVersion treeChild = treeNode.getChildAt(i);
 			String indentText = "\n";
 			for(int j=0; j<indent+1; j++){
 				indentText += "\t";
 			}
 			parent.appendChild(doc.createTextNode(indentText));
 			Element childEl = doc.createElement("task");
-			childEl.setAttribute("label", (String)treeChild.getUserObject());
+			if(treeChild.getId()!=0L){
+				childEl.setAttribute("id", TaskIdMap.format(treeChild.getId()));
+			}
+			childEl.setAttribute("label", treeChild.getLabel());
 			parent.appendChild(childEl);
 			addChildElementsFromTasks(doc, childEl, treeChild, indent+1);
 		}		
@@ -393,27 +1315,7 @@ public class TaskTree
 			if(a.getNodeValue()!=null && !a.getNodeValue().equals(b.getNodeValue())){
 				return false;
 			}
-			NamedNodeMap attrsA = a.getAttributes();
-			Map<String,String> attrMapA = new HashMap<String,String>();
-			if(attrsA!=null)
-			{
-				for(int i=0; i<attrsA.getLength(); i++)
-				{
-					Attr att = (Attr)attrsA.item(i);
-					attrMapA.put(att.getName(),att.getValue());
-				}
-			}
-			NamedNodeMap attrsB = b.getAttributes();
-			Map<String,String> attrMapB = new HashMap<String,String>();
-			if(attrsB!=null)
-			{
-				for(int i=0; i<attrsB.getLength(); i++)
-				{
-					Attr att = (Attr)attrsB.item(i);
-					attrMapB.put(att.getName(),att.getValue());
-				}
-			}
-			if(!attrMapA.equals(attrMapB)){
+			if(!attributesEqual(a.getAttributes(), b.getAttributes())){
 				return false;
 			}
 			
@@ -431,84 +1333,533 @@ public class TaskTree
 				return false;
 			}
 		}
-		return true;
+		return true;
+	}
+	
+	// compares attributes by name in place, rather than copying both sets. Task
+	// ids are ignored, as a server may not keep them.
+	protected boolean attributesEqual(NamedNodeMap attrsA, NamedNodeMap attrsB)
+	{
+		if(countAttributes(attrsA)!=countAttributes(attrsB)){
+			return false;
+		}
+		for(int i=0; attrsA!=null && i<attrsA.getLength(); i++)
+		{
+			Attr attA = (Attr)attrsA.item(i);
+			if(attA.getName().equals("id")){
+				continue;
+			}
+			Attr attB = (Attr)attrsB.getNamedItem(attA.getName());
+			if(attB==null || !attA.getValue().equals(attB.getValue())){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	protected int countAttributes(NamedNodeMap attrs)
+	{
+		int count = 0;
+		for(int i=0; attrs!=null && i<attrs.getLength(); i++)
+		{
+			if(!((Attr)attrs.item(i)).getName().equals("id")){
+				count ++;
+			}
+		}
+		return count;
+	}
+	
+	public synchronized void saveConfig() throws Exception
+	{
+		try
+		{
+			DocumentBuilder builder = builderFact.newDocumentBuilder();
+			Document doc = builder.newDocument();
+			//doc.appendChild(doc.createTextNode("\n"));
+			Element elConfig = doc.createElement("config");
+			doc.appendChild(elConfig);	
+			elConfig.appendChild(doc.createTextNode("\n"));
+			
+			makeConfigEl(doc,elConfig,"load-url","URL used to load task tree from remote server",loadUrl);
+			
+			makeConfigEl(doc,elConfig,"save-url","URL used to save task tree to remote server",saveUrl);
+			
+			makeConfigEl(doc,elConfig,"merge-command","Command executed to merge task tree versions. "
+						+"Use {0} for local file, {1} for remote",mergeCommand);								
+			
+			if(lastSyncTime == null){
+				lastSyncTime = 0L;
+			}
+			makeConfigEl(doc,elConfig,"last-sync","Timestamp of last sync. Do not edit!",lastSyncTime);			
+			
+			if(unsynchedChanges == null){
+				unsynchedChanges = true;
+			}
+			makeConfigEl(doc,elConfig,"unsynched-changes","Changes made since last sync. Do not edit!",unsynchedChanges);
+			
+			makeConfigEl(doc,elConfig,"sync-etag","Server's version of the tasks at last sync. "
+						+"Do not edit!",syncETag);
+			
+			if(journalSync == null){
+				journalSync = TaskJournal.SyncPolicy.PERIODIC;
+			}
+			makeConfigEl(doc,elConfig,"journal-sync","When to force journaled edits to disk. "
+						+"One of always, periodic or never",journalSync.name().toLowerCase());
+			
+			if(storageCodec == null){
+				storageCodec = StorageCodec.NONE;
+			}
+			makeConfigEl(doc,elConfig,"storage-codec","Compression for the task file. "
+						+"One of none, gzip or fast",storageCodec.name().toLowerCase());
+			
+			if(syncCodec == null){
+				syncCodec = StorageCodec.GZIP;
+			}
+			makeConfigEl(doc,elConfig,"sync-codec","Compression for sync uploads, if the server "
+						+"accepts it. One of none, gzip or fast",syncCodec.name().toLowerCase());
+			
+			makeConfigEl(doc,elConfig,"binary-snapshot","Keep a binary copy of the task file "
+						+"for faster startup",binarySnapshot);
+			
+			makeConfigEl(doc,elConfig,"large-tree-view","Show tasks in plain text with "
+						+"fixed height rows, for very large task lists",largeTreeView);
+			
+			makeConfigEl(doc,elConfig,"checkpoint-records","Journal records before "
+						+"rewriting the task file",checkpointRecords);
+			
+			makeConfigEl(doc,elConfig,"checkpoint-bytes","Journal size in bytes before "
+						+"rewriting the task file",checkpointBytes);
+			
+			makeConfigEl(doc,elConfig,"checkpoint-idle-seconds","Seconds without edits "
+						+"before rewriting the task file",checkpointIdleSeconds);
+			
+			makeConfigEl(doc,elConfig,"checkpoint-replay-millis","Estimated journal replay "
+						+"time in milliseconds before rewriting the task file",checkpointReplayMillis);
+			
+			makeConfigEl(doc,elConfig,"sync-timeout-seconds","Seconds to wait for the "
+						+"server when synchronising",syncTimeoutSeconds);
+			
+			elConfig.appendChild(doc.createTextNode("\n"));
+			
+			makeFilePath();
+			AtomicFile file = new AtomicFile(new File(filePath+CONFIG_FILENAME));
+			FileOutputStream fileStream = file.startWrite();
+			try
+			{
+				writeDocToStream(doc,fileStream);
+				file.finishWrite(fileStream);
+			}
+			catch(Exception e)
+			{
+				file.failWrite(fileStream);
+				throw e;
+			}
+		}
+		catch(Exception e)
+		{
+			throw new Exception("Failed to save config file: "+e.getClass().getName()+" - "+e.getMessage());
+		}
+	}
+	
+	// gives the ids of the tasks from the top level down to each of the given tasks
+	public List<long[]> getTaskPaths(List<? extends TreeNode> nodes)
+	{
+		List<long[]> paths = new ArrayList<long[]>();
+		for(TreeNode node : nodes)
+		{
+			TreeNode[] pathNodes = treeModel.getPathToRoot(node);
+			if(pathNodes==null || pathNodes.length<2 || pathNodes[0]!=root){
+				continue;
+			}
+			long[] path = new long[pathNodes.length-1];
+			for(int i=1; i<pathNodes.length; i++){
+				path[i-1] = getTaskId(pathNodes[i]);
+			}
+			paths.add(path);
+		}
+		return paths;
+	}
+	
+	// finds the tasks at the end of the given id paths, skipping any which no longer 
+	// exist. Only the branches along each path are decoded.
+	public List<TreeNode> findTasks(List<long[]> paths)
+	{
+		List<TreeNode> nodes = new ArrayList<TreeNode>();
+		for(long[] path : paths)
+		{
+			TreeNode node = root;
+			for(int i=0; i<path.length && node!=null; i++)
+			{
+				// fetching a child decodes them all, registering their ids
+				if(node.getChildCount() > 0){
+					node.getChildAt(0);
+				}
+				DefaultMutableTreeNode child = taskIds.get(path[i]);
+				node = child!=null && child.getParent()==node ? child : null;
+			}
+			if(node!=null){
+				nodes.add(node);
+			}
+		}
+		return nodes;
+	}
+	
+	// reads the expanded tasks saved by saveExpandedState, one line of dot
+	// separated task ids per task
+	public List<TreeNode> loadExpandedState() throws Exception
+	{
+		List<long[]> paths = new ArrayList<long[]>();
+		File file = new File(filePath+EXPANDED_FILENAME);
+		if(!file.exists()){
+			return new ArrayList<TreeNode>();
+		}
+		try
+		{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), "UTF-8"));
+			try
+			{
+				String line;
+				while((line = reader.readLine()) != null)
+				{
+					line = line.trim();
+					if(line.length()==0){
+						continue;
+					}
+					String[] parts = line.split("\\.");
+					long[] path = new long[parts.length];
+					for(int i=0; i<parts.length; i++){
+						path[i] = TaskIdMap.parse(parts[i]);
+					}
+					paths.add(path);
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch(Exception e)
+		{
+			throw new Exception("Failed to load expanded tasks: "+e.getClass().getName()+" - "+e.getMessage());
+		}
+		return findTasks(paths);
+	}
+	
+	public void saveExpandedState(List<? extends TreeNode> nodes) throws Exception
+	{
+		List<long[]> paths = getTaskPaths(nodes);
+		try
+		{
+			makeFilePath();
+			AtomicFile file = new AtomicFile(new File(filePath+EXPANDED_FILENAME), false);
+			FileOutputStream fileStream = file.startWrite();
+			try
+			{
+				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fileStream, "UTF-8"));
+				for(long[] path : paths)
+				{
+					for(int i=0; i<path.length; i++)
+					{
+						if(i>0){
+							writer.write('.');
+						}
+						writer.write(TaskIdMap.format(path[i]));
+					}
+					writer.write('\n');
+				}
+				writer.flush();
+				file.finishWrite(fileStream);
+			}
+			catch(Exception e)
+			{
+				file.failWrite(fileStream);
+				throw e;
+			}
+		}
+		catch(Exception e)
+		{
+			throw new Exception("Failed to save expanded tasks: "+e.getClass().getName()+" - "+e.getMessage());
+		}
+	}
+	
+	protected void makeConfigEl(Document doc, Node parent, String name, String description, Object value)
+	{
+		parent.appendChild(doc.createTextNode("\n\t"));
+		parent.appendChild(doc.createComment(description));
+		parent.appendChild(doc.createTextNode("\n\t"));
+		Element elParam = doc.createElement(name);
+		if(value!=null){
+			elParam.appendChild(doc.createTextNode(String.valueOf(value)));
+		}
+		parent.appendChild(elParam);
+		parent.appendChild(doc.createTextNode("\n"));
+	}
+	
+	public void load() throws Exception
+	{
+		try
+		{
+			AtomicFile atomicFile = new AtomicFile(new File(filePath+FILENAME));
+			if(!atomicFile.exists())
+			{
+				save();
+			}
+			
+			File file = null;
+			long checksum = 0L;
+			idsAssigned = 0;
+			if(binarySnapshot)
+			{
+				TaskSnapshot snapshot = openSnapshot(atomicFile.getFile());
+				if(snapshot!=null)
+				{
+					TaskIdMap ids = new TaskIdMap();
+					DefaultMutableTreeNode newRoot = new TaskNode("root");
+					snapshot.readInto(newRoot, ids);
+					installRoot(newRoot, ids);
+					undecodedTasks = true;
+					file = atomicFile.getFile();
+					checksum = snapshot.getXmlCrc();
+				}
+			}
+			
+			// fall back to the previous generation if the current one is unreadable
+			Exception failure = null;
+			for(File generation : atomicFile.getGenerations())
+			{
+				if(file!=null){
+					break;
+				}
+				if(!generation.exists()){
+					continue;
+				}
+				try
+				{
+					checksum = readCheckpoint(generation, null);
+					file = generation;
+					if(binarySnapshot && file==atomicFile.getFile()){
+						writeSnapshot(file, checksum, version.get());
+					}
+					break;
+				}
+				catch(Exception e)
+				{
+					if(failure==null){
+						failure = e;
+					}
+				}
+			}
+			if(file==null){
+				throw failure;
+			}
+			if(file!=atomicFile.getFile() && atomicFile.getFile().exists()){
+				atomicFile.setAsideCurrent();
+			}
+			
+			// replay edits made since the file was written
+			if(journal!=null){
+				journal.close();
+			}
+			journal = new TaskJournal(new File(filePath+JOURNAL_FILENAME), journalSync, labelPool);
+			journalError = null;
+			long replayStart = System.nanoTime();
+			int replayed = journal.open(file.length(), checksum, root);
+			if(replayed > 0)
+			{
+				recordReplayTime(replayed, System.nanoTime()-replayStart);
+				taskIds.clear();
+				indexTasks(root, true);
+				version.set(TaskVersion.of(root));
+				treeModel.reload();
+			}
+			
+			// write out ids given to tasks which didn't have one, so they stick
+			if(file!=atomicFile.getFile() || idsAssigned > 0){
+				save();
+			}
+			
+			if(checkpointScheduler==null)
+			{
+				checkpointScheduler = new CheckpointScheduler(this);
+				checkpointScheduler.start();
+			}
+			if(saveWorker==null)
+			{
+				saveWorker = new SaveWorker(this);
+				saveWorker.setErrorHandler(saveErrorHandler);
+				saveWorker.start();
+				
+				// last chance to write out buffered edits if we're exiting
+				Runtime.getRuntime().addShutdownHook(new Thread(){
+					public void run()
+					{
+						try{
+							TaskTree.this.close();
+						}catch(Exception e){}
+					}
+				});
+			}
+		}
+		catch(Exception e)
+		{
+			throw new Exception("Failed to load file: "+e.getClass().getName()+" - "+e.getMessage());
+		}
 	}
 	
-	public void saveConfig() throws Exception
+	// reads a checkpoint into the given store, or into the live tree if there is
+	// no store, returning the checksum of the file
+	protected long readCheckpoint(File file, TaskStore store) throws Exception
 	{
+		CheckedInputStream checkedStream = new CheckedInputStream(
+				new FileInputStream(file), new CRC32());
+		InputStream fileStream = new BufferedInputStream(checkedStream);
+		InputStream codecStream = fileStream;
 		try
 		{
-			DocumentBuilder builder = builderFact.newDocumentBuilder();
-			Document doc = builder.newDocument();
-			//doc.appendChild(doc.createTextNode("\n"));
-			Element elConfig = doc.createElement("config");
-			doc.appendChild(elConfig);	
-			elConfig.appendChild(doc.createTextNode("\n"));
-			
-			makeConfigEl(doc,elConfig,"load-url","URL used to load task tree from remote server",loadUrl);
-			
-			makeConfigEl(doc,elConfig,"save-url","URL used to save task tree to remote server",saveUrl);
+			codecStream = StorageCodec.detect(fileStream).wrap(fileStream);
 			
-			makeConfigEl(doc,elConfig,"merge-command","Command executed to merge task tree versions. "
-						+"Use {0} for local file, {1} for remote",mergeCommand);								
+			// the parser closes its input at the end of the document, so keep
+			// the file open for reading the remainder
+			readTasksFromStream(new FilterInputStream(codecStream){
+				public void close(){}
+			}, store);
 			
-			if(lastSyncTime == null){
-				lastSyncTime = 0L;
+			// checksum covers the whole file, including anything after the root,
+			// and reading the compressed stream to the end verifies its trailer
+			byte[] buffer = new byte[1024];
+			while(codecStream.read(buffer) != -1);
+			while(fileStream.read(buffer) != -1);
+		}
+		finally
+		{
+			codecStream.close();
+		}
+		return checkedStream.getChecksum().getValue();
+	}
+	
+	protected void loadFromStream(InputStream stream) throws Exception
+	{
+		readTasksFromStream(stream, null);
+	}
+	
+	// builds the tree straight from the parser's event stream, with the same 
+	// validation as updateFromDocument but without an intermediate document. The 
+	// live tree is only replaced once the whole file has been read.
+	protected void readTasksFromStream(InputStream stream, TaskStore store) throws Exception
+	{
+		XMLStreamReader reader = inputFact.createXMLStreamReader(stream);
+		try
+		{
+			if(!nextChildElement(reader) || !reader.getLocalName().equals("tasklist"))
+			{
+				throw new Exception("Missing root element \"tasklist\"");
 			}
-			makeConfigEl(doc,elConfig,"last-sync","Timestamp of last sync. Do not edit!",lastSyncTime);			
-			
-			if(unsynchedChanges == null){
-				unsynchedChanges = true;
+			if(!nextChildElement(reader))
+			{
+				throw new Exception("Missing element \"tasks\"");
+			}
+			if(!reader.getLocalName().equals("tasks")){
+				throw new Exception("Missing element \"tasks\"");
+			}
+			TaskIdMap ids = new TaskIdMap();
+			DefaultMutableTreeNode newRoot = new TaskNode("root");
+			if(store==null){
+				addTasksFromStream(reader, newRoot, ids);
+			}else{
+				addTasksFromStream(reader, store);
 			}
-			makeConfigEl(doc,elConfig,"unsynched-changes","Changes made since last sync. Do not edit!",unsynchedChanges);
-			
-			elConfig.appendChild(doc.createTextNode("\n"));
 			
-			makeFilePath();
-			File file = new File(filePath+CONFIG_FILENAME);
-			FileOutputStream fileStream = new FileOutputStream(file);
-			writeDocToStream(doc,fileStream);
-			fileStream.close();					
+			// read to the end so that malformed trailing content is still reported
+			while(reader.hasNext()){
+				reader.next();
+			}
+			if(store==null){
+				installRoot(newRoot, ids);
+			}
 		}
-		catch(Exception e)
+		finally
 		{
-			throw new Exception("Failed to save config file: "+e.getClass().getName()+" - "+e.getMessage());
+			reader.close();
 		}
 	}
 	
-	protected void makeConfigEl(Document doc, Node parent, String name, String description, Object value)
+	// advances to the next child element of the current element, or returns false
+	// if the current element ends first
+	protected boolean nextChildElement(XMLStreamReader reader) throws Exception
 	{
-		parent.appendChild(doc.createTextNode("\n\t"));
-		parent.appendChild(doc.createComment(description));
-		parent.appendChild(doc.createTextNode("\n\t"));
-		Element elParam = doc.createElement(name);
-		if(value!=null){
-			elParam.appendChild(doc.createTextNode(String.valueOf(value)));
+		while(reader.hasNext())
+		{
+			int event = reader.next();
+			if(event==XMLStreamConstants.START_ELEMENT){
+				return true;
+			}
+			if(event==XMLStreamConstants.END_ELEMENT){
+				return false;
+			}
 		}
-		parent.appendChild(elParam);
-		parent.appendChild(doc.createTextNode("\n"));
+		return false;
 	}
 	
-	public void load() throws Exception
+	protected void addTasksFromStream(XMLStreamReader reader, DefaultMutableTreeNode treeNode,
+			TaskIdMap ids) throws Exception
 	{
-		try
+		DefaultMutableTreeNode current = treeNode;
+		while(true)
 		{
-			File file = new File(filePath+FILENAME);
-			if(!file.exists())
+			if(nextChildElement(reader))
 			{
-				save();
+				TaskNode newNode = createTask(readTaskLabel(reader), 
+						TaskIdMap.parse(reader.getAttributeValue(null, "id")), ids);
+				current.add(newNode);
+				current = newNode;
+			}
+			else
+			{
+				if(current==treeNode){
+					break;
+				}
+				current = (DefaultMutableTreeNode)current.getParent();
 			}
-			DocumentBuilder builder = builderFact.newDocumentBuilder();
-			Document doc = builder.parse(file);
-			loadFromDocument(doc);
 		}
-		catch(Exception e)
+	}
+	
+	protected void addTasksFromStream(XMLStreamReader reader, TaskStore store) throws Exception
+	{
+		int current = TaskStore.ROOT;
+		while(true)
 		{
-			throw new Exception("Failed to load file: "+e.getClass().getName()+" - "+e.getMessage());
+			if(nextChildElement(reader))
+			{
+				String label = readTaskLabel(reader);
+				long id = TaskIdMap.parse(reader.getAttributeValue(null, "id"));
+				current = store.add(current, label, id!=0L ? id : TaskIdMap.newId());
+			}
+			else
+			{
+				if(current==TaskStore.ROOT){
+					break;
+				}
+				current = store.getParent(current);
+			}
+		}
+	}
+	
+	protected String readTaskLabel(XMLStreamReader reader) throws Exception
+	{
+		if(!reader.getLocalName().equals("task")){
+			throw new Exception("Expected \"task\", found \""+reader.getLocalName()+"\"");
 		}
+		String name = reader.getAttributeValue(null, "label");
+		if(name==null || name.length()==0){
+			throw new Exception("No label attribute for task");
+		}
+		return name;
 	}
 	
-	protected void loadFromDocument(Document doc) throws Exception
+	// changes only the tasks which differ from the document, keeping everything 
+	// else in place in the view
+	protected void updateFromDocument(Document doc) throws Exception
 	{
 		Element root = doc.getDocumentElement();
 		if(root==null || !root.getNodeName().equals("tasklist"))
@@ -520,12 +1871,71 @@ public class TaskTree
 		{
 			throw new Exception("Missing element \"tasks\""); 
 		}
-		clearTree();
 		Element tasks = i.next();
 		if(!tasks.getNodeName().equals("tasks")){
 			throw new Exception("Missing element \"tasks\"");
 		}
-		addTasksFromChildElements(tasks, this.root);
+		DefaultMutableTreeNode newRoot = new TaskNode("root");
+		addTasksFromChildElements(tasks, newRoot);
+		new TaskTreeDiff(this).apply(newRoot);
+	}
+	
+	// the live tree belongs to the event thread, so sync applies its changes there
+	protected void updateOnEventThread(final Document doc) throws Exception
+	{
+		call(new TaskCommand<Void>(){
+			public Void run(TaskTree taskTree) throws Exception
+			{
+				taskTree.updateFromDocument(doc);
+				return null;
+			}
+		});
+	}
+	
+	// queues a command to run on the event thread, which is the only thread that
+	// changes the tree. Other threads read the published version instead. The 
+	// result is a plain FutureTask, as the tree keeps to the Java 6 APIs.
+	public <T> Future<T> submit(final TaskCommand<T> command)
+	{
+		final long queued = System.nanoTime();
+		FutureTask<T> task = new FutureTask<T>(new Callable<T>(){
+			public T call() throws Exception
+			{
+				return runCommand(command, queued);
+			}
+		});
+		SwingUtilities.invokeLater(task);
+		return task;
+	}
+	
+	// runs a command on the event thread and waits for its result. On the event 
+	// thread itself it runs straight away, as waiting for the queue would block.
+	public <T> T call(TaskCommand<T> command) throws Exception
+	{
+		if(SwingUtilities.isEventDispatchThread()){
+			return runCommand(command, System.nanoTime());
+		}
+		try
+		{
+			return submit(command).get();
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof Exception){
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	protected <T> T runCommand(TaskCommand<T> command, long queued) throws Exception
+	{
+		long start = System.nanoTime();
+		try{
+			return command.run(this);
+		}finally{
+			commandMetrics.record(start-queued, System.nanoTime()-start);
+		}
 	}
 	
 	protected Iterator<Element> getElementChildren(Node parent)
@@ -580,14 +1990,10 @@ public class TaskTree
 		}		
 	}
 	
-	protected void clearTree()
-	{
-		root.removeAllChildren();
-		treeModel.reload();
-	}
-	
-	protected void addTasksFromChildElements(Element parent, DefaultMutableTreeNode treeNode)
-		throws Exception
+	// builds a detached copy of the elements' tasks, keeping their ids as they are,
+	// or 0 where they have none. Ids are only given out as the tasks are added.
+	protected void addTasksFromChildElements(Element parent, DefaultMutableTreeNode treeNode) 
+			throws Exception
 	{
 		Iterator<Element> i = getElementChildren(parent);
 		while(i.hasNext())
@@ -600,7 +2006,9 @@ public class TaskTree
 			if(name==null || name.length()==0){
 				throw new Exception("No label attribute for task");
 			}
-			DefaultMutableTreeNode newNode = addTask(treeNode, treeNode.getChildCount(), name);
+			TaskNode newNode = new TaskNode(name);
+			newNode.setId(TaskIdMap.parse(child.getAttribute("id")));
+			treeNode.add(newNode);
 			addTasksFromChildElements(child, newNode);
 		}
 	}
@@ -609,13 +2017,39 @@ public class TaskTree
 	{
 		try
 		{
-			File file = new File(filePath+CONFIG_FILENAME);
+			AtomicFile file = new AtomicFile(new File(filePath+CONFIG_FILENAME));
 			if(!file.exists())
 			{
 				saveConfig();
 			}
+			
+			// fall back to the previous generation if the current one is unreadable
 			DocumentBuilder builder = builderFact.newDocumentBuilder();
-			Document doc = builder.parse(file);
+			Document doc = null;
+			Exception failure = null;
+			for(File generation : file.getGenerations())
+			{
+				if(!generation.exists()){
+					continue;
+				}
+				try
+				{
+					doc = builder.parse(generation);
+					if(generation!=file.getFile() && file.getFile().exists()){
+						file.setAsideCurrent();
+					}
+					break;
+				}
+				catch(Exception e)
+				{
+					if(failure==null){
+						failure = e;
+					}
+				}
+			}
+			if(doc==null){
+				throw failure;
+			}
 			Element root = doc.getDocumentElement();
 			if(root==null || !root.getNodeName().equals("config"))
 			{
@@ -628,6 +2062,17 @@ public class TaskTree
 			mergeCommand = null;
 			lastSyncTime = 0L;
 			unsynchedChanges = true;
+			journalSync = TaskJournal.SyncPolicy.PERIODIC;
+			storageCodec = StorageCodec.NONE;
+			syncCodec = StorageCodec.GZIP;
+			binarySnapshot = false;
+			largeTreeView = false;
+			checkpointRecords = 1000;
+			checkpointBytes = 1024*1024;
+			checkpointIdleSeconds = 30;
+			checkpointReplayMillis = 500;
+			syncTimeoutSeconds = 60;
+			syncETag = null;
 						
 			while(i.hasNext())
 			{
@@ -656,15 +2101,70 @@ public class TaskTree
 						lastSyncTime = Long.parseLong(el.getTextContent());
 					}catch(NumberFormatException e){}
 				}		
+				else if(el.getNodeName().equals("sync-etag")){
+					syncETag = el.getTextContent();
+					if(syncETag!=null && syncETag.length()==0){
+						syncETag = null;
+					}
+				}
 				else if(el.getNodeName().equals("unsynched-changes")){					
 					unsynchedChanges = Boolean.parseBoolean(el.getTextContent());					
 				}
+				else if(el.getNodeName().equals("journal-sync")){
+					try{
+						journalSync = TaskJournal.SyncPolicy.valueOf(el.getTextContent().trim().toUpperCase());
+					}catch(IllegalArgumentException e){}
+				}
+				else if(el.getNodeName().equals("storage-codec")){
+					try{
+						storageCodec = StorageCodec.valueOf(el.getTextContent().trim().toUpperCase());
+					}catch(IllegalArgumentException e){}
+				}
+				else if(el.getNodeName().equals("sync-codec")){
+					try{
+						syncCodec = StorageCodec.valueOf(el.getTextContent().trim().toUpperCase());
+					}catch(IllegalArgumentException e){}
+				}
+				else if(el.getNodeName().equals("binary-snapshot")){
+					binarySnapshot = Boolean.parseBoolean(el.getTextContent().trim());
+				}
+				else if(el.getNodeName().equals("large-tree-view")){
+					largeTreeView = Boolean.parseBoolean(el.getTextContent().trim());
+				}
+				else if(el.getNodeName().equals("checkpoint-records")){
+					try{
+						checkpointRecords = Integer.parseInt(el.getTextContent().trim());
+					}catch(NumberFormatException e){}
+				}
+				else if(el.getNodeName().equals("checkpoint-bytes")){
+					try{
+						checkpointBytes = Long.parseLong(el.getTextContent().trim());
+					}catch(NumberFormatException e){}
+				}
+				else if(el.getNodeName().equals("checkpoint-idle-seconds")){
+					try{
+						checkpointIdleSeconds = Integer.parseInt(el.getTextContent().trim());
+					}catch(NumberFormatException e){}
+				}
+				else if(el.getNodeName().equals("checkpoint-replay-millis")){
+					try{
+						checkpointReplayMillis = Integer.parseInt(el.getTextContent().trim());
+					}catch(NumberFormatException e){}
+				}
+				else if(el.getNodeName().equals("sync-timeout-seconds")){
+					try{
+						syncTimeoutSeconds = Integer.parseInt(el.getTextContent().trim());
+					}catch(NumberFormatException e){}
+				}
 			}
 		}
 		catch(Exception e)
 		{
 			throw new Exception("Failed to load config file: "+e.getClass().getName()+" - "+e.getMessage());
 		}
+		if(journal!=null){
+			journal.setSyncPolicy(journalSync);
+		}
 	}
 	
 	public boolean hasSyncCapability()
@@ -672,14 +2172,269 @@ public class TaskTree
 		return loadUrl!=null && saveUrl!=null && mergeCommand!=null;
 	}
 	
-	public void moveTask(DefaultMutableTreeNode node, DefaultMutableTreeNode parent, int childPos)
+	// event thread only, as for addTask
+	public void moveTask(final DefaultMutableTreeNode node, DefaultMutableTreeNode parent, int childPos)
+	{
+		final DefaultMutableTreeNode oldParent = (DefaultMutableTreeNode)node.getParent();
+		final int oldPos = oldParent.getIndex(node);
+		synchronized(versionLock)
+		{
+			if(journal!=null)
+			{
+				try{
+					journal.logMove(node, parent, childPos);
+				}catch(IOException e){
+					journalError = e;
+				}
+			}
+			TaskVersion moved = removeNode(node);
+			insertNode(node, parent, childPos, moved!=null ? moved : TaskVersion.of(node));
+		}
+		logUndo(new Runnable(){
+			public void run(){
+				moveTask(node, oldParent, oldPos);
+			}
+		});
+	}
+	
+	// event thread only, as for addTask
+	public void removeTask(final DefaultMutableTreeNode node)
+	{
+		final DefaultMutableTreeNode oldParent = (DefaultMutableTreeNode)node.getParent();
+		final int oldPos = oldParent.getIndex(node);
+		synchronized(versionLock)
+		{
+			if(journal!=null)
+			{
+				try{
+					journal.logRemove(node);
+				}catch(IOException e){
+					journalError = e;
+				}
+			}
+			removeNode(node);
+		}
+		indexTasks(node, false);
+		logUndo(new Runnable(){
+			public void run(){
+				restoreTask(node, oldParent, oldPos);
+			}
+		});
+	}
+	
+	// event thread only, as for addTask
+	public void renameTask(final DefaultMutableTreeNode node, String name)
+	{
+		final String oldName = (String)node.getUserObject();
+		synchronized(versionLock)
+		{
+			if(journal!=null)
+			{
+				try{
+					journal.logRename(node, name);
+				}catch(IOException e){
+					journalError = e;
+				}
+			}
+			node.setUserObject(labelPool.intern(name));
+			int[] path = pathOf(node);
+			if(path!=null){
+				version.set(version.get().rename(path, (String)node.getUserObject()));
+			}
+		}
+		if(batch!=null){
+			batch.changed.add(node);
+		}else{
+			treeModel.nodeChanged(node);
+		}
+		logUndo(new Runnable(){
+			public void run(){
+				renameTask(node, oldName);
+			}
+		});
+	}
+	
+	// puts a removed branch back as it was, journaling each of its tasks as an add
+	protected void restoreTask(DefaultMutableTreeNode node, DefaultMutableTreeNode parent, int childPos)
+	{
+		indexTasks(node, true);
+		synchronized(versionLock)
+		{
+			insertNode(node, parent, childPos);
+			if(journal==null){
+				return;
+			}
+			try
+			{
+				Enumeration<?> tasks = node.preorderEnumeration();
+				while(tasks.hasMoreElements())
+				{
+					DefaultMutableTreeNode task = (DefaultMutableTreeNode)tasks.nextElement();
+					DefaultMutableTreeNode taskParent = (DefaultMutableTreeNode)task.getParent();
+					journal.logAdd(taskParent, taskParent.getIndex(task), 
+							(String)task.getUserObject(), getTaskId(task));
+				}
+			}
+			catch(IOException e)
+			{
+				journalError = e;
+			}
+		}
+	}
+	
+	// applies the edits made by the given batch as one change: the tree model
+	// reports each changed branch once and the tasks are saved once. If the batch
+	// fails, its edits are undone and the exception is passed on. Batches started
+	// within a batch become part of it. Like the edits themselves, batches run on
+	// the event thread once the tree is shown.
+	public void batch(TaskBatch edits) throws Exception
+	{
+		if(batch!=null)
+		{
+			edits.run(this);
+			return;
+		}
+		Batch current = new Batch();
+		batch = current;
+		boolean committed = false;
+		try
+		{
+			edits.run(this);
+			committed = true;
+		}
+		finally
+		{
+			if(!committed)
+			{
+				// the model never reported the edits, so the undo needn't either
+				current.recording = false;
+				for(int i=current.undo.size()-1; i>=0; i--){
+					current.undo.get(i).run();
+				}
+			}
+			batch = null;
+		}
+		current.fireEvents();
+		if(current.changesMade || !current.undo.isEmpty()){
+			changesMade();
+		}
+	}
+	
+	protected void logUndo(Runnable undo)
+	{
+		if(batch!=null && batch.recording){
+			batch.undo.add(undo);
+		}
+	}
+	
+	protected void insertNode(DefaultMutableTreeNode node, DefaultMutableTreeNode parent, int childPos)
+	{
+		insertNode(node, parent, childPos, TaskVersion.of(node));
+	}
+	
+	// puts a branch in the tree, publishing a version with the given copy of it
+	protected void insertNode(DefaultMutableTreeNode node, DefaultMutableTreeNode parent, int childPos,
+			TaskVersion nodeVersion)
+	{
+		int[] path = pathOf(parent);
+		if(path!=null){
+			version.set(version.get().insert(path, childPos, nodeVersion));
+		}
+		if(batch!=null)
+		{
+			parent.insert(node, childPos);
+			batch.structureChanged.add(parent);
+		}
+		else
+		{
+			treeModel.insertNodeInto(node, parent, childPos);
+		}
+	}
+	
+	// takes a branch out of the tree, returning its copy from the old version
+	protected TaskVersion removeNode(DefaultMutableTreeNode node)
+	{
+		int[] path = pathOf(node);
+		TaskVersion removed = null;
+		if(path!=null)
+		{
+			removed = version.get().getDescendant(path);
+			version.set(version.get().remove(path));
+		}
+		if(batch!=null)
+		{
+			batch.structureChanged.add((DefaultMutableTreeNode)node.getParent());
+			node.removeFromParent();
+		}
+		else
+		{
+			treeModel.removeNodeFromParent(node);
+		}
+		return removed;
+	}
+	
+	// the child indices leading from the root to the given task, or null if it
+	// isn't in the tree
+	protected int[] pathOf(TreeNode node)
 	{
-		treeModel.removeNodeFromParent(node);
-		treeModel.insertNodeInto(node, parent, childPos);
+		int depth = 0;
+		TreeNode top = node;
+		for(; top.getParent()!=null; top=top.getParent()){
+			depth++;
+		}
+		if(top!=root){
+			return null;
+		}
+		int[] path = new int[depth];
+		for(TreeNode n=node; n.getParent()!=null; n=n.getParent()){
+			path[--depth] = n.getParent().getIndex(n);
+		}
+		return path;
 	}
 	
-	public void removeTask(DefaultMutableTreeNode node)
+	/*
+	 * Edits in progress within a call to batch
+	 */
+	protected class Batch
 	{
-		treeModel.removeNodeFromParent(node);
+		protected List<Runnable> undo = new ArrayList<Runnable>();
+		protected Set<DefaultMutableTreeNode> structureChanged = new LinkedHashSet<DefaultMutableTreeNode>();
+		protected Set<DefaultMutableTreeNode> changed = new LinkedHashSet<DefaultMutableTreeNode>();
+		protected boolean recording = true;
+		protected boolean changesMade = false;
+		
+		// reports the topmost changed branches still in the tree, leaving out those
+		// within a branch that is already reported
+		protected void fireEvents()
+		{
+			for(DefaultMutableTreeNode node : structureChanged)
+			{
+				if(isAttached(node) && !hasChangedAncestor(node)){
+					treeModel.nodeStructureChanged(node);
+				}
+			}
+			for(DefaultMutableTreeNode node : changed)
+			{
+				if(isAttached(node) && !hasChangedAncestor(node)){
+					treeModel.nodeChanged(node);
+				}
+			}
+		}
+		
+		protected boolean isAttached(DefaultMutableTreeNode node)
+		{
+			return node.getRoot()==root;
+		}
+		
+		protected boolean hasChangedAncestor(DefaultMutableTreeNode node)
+		{
+			for(TreeNode n=node.getParent(); n!=null; n=n.getParent())
+			{
+				if(structureChanged.contains(n)){
+					return true;
+				}
+			}
+			return false;
+		}
 	}
 }
@@ -0,0 +1,439 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.TreeNode;
+
+/*
+ * Brings the task tree into line with another tree using as few adds, moves, 
+ * removes and renames as it can, so that untouched tasks keep their place in the
+ * view. Incoming tasks are matched with existing ones by id wherever they are in
+ * the tree. Incoming tasks without an id, such as from a server which drops 
+ * them, are matched among their parent's children by identical subtree, then by
+ * label, then by position. Subtrees are compared by hash first, and only taken 
+ * as identical once their labels have been checked. Matched subtrees which are already identical are not
+ * visited, and siblings are only moved if they are out of order, so the common 
+ * cases are close to linear.
+ */
+public class TaskTreeDiff
+{
+	protected TaskTree taskTree;
+	protected Map<TreeNode,Long> hashes = new IdentityHashMap<TreeNode,Long>();
+	protected Map<TreeNode,DefaultMutableTreeNode> idMatches = new IdentityHashMap<TreeNode,DefaultMutableTreeNode>();
+	protected Map<TreeNode,Boolean> claimed = new IdentityHashMap<TreeNode,Boolean>();
+	protected Map<TreeNode,Boolean> matchedBranches = new IdentityHashMap<TreeNode,Boolean>();
+	protected Map<TreeNode,Boolean> claimedBranches = new IdentityHashMap<TreeNode,Boolean>();
+	protected List<DefaultMutableTreeNode> leftovers = new ArrayList<DefaultMutableTreeNode>();
+	protected int added = 0;
+	protected int moved = 0;
+	protected int removed = 0;
+	protected int renamed = 0;
+	
+	public TaskTreeDiff(TaskTree taskTree)
+	{
+		this.taskTree = taskTree;
+	}
+	
+	public int getAdded()
+	{
+		return added;
+	}
+	
+	public int getMoved()
+	{
+		return moved;
+	}
+	
+	public int getRemoved()
+	{
+		return removed;
+	}
+	
+	public int getRenamed()
+	{
+		return renamed;
+	}
+	
+	// edits the task tree to match the given tree, which isn't changed
+	public void apply(DefaultMutableTreeNode newRoot)
+	{
+		DefaultMutableTreeNode root = taskTree.getRoot();
+		List<DefaultMutableTreeNode> nodes = listTree(root);
+		List<DefaultMutableTreeNode> newNodes = listTree(newRoot);
+		hashTree(nodes);
+		hashTree(newNodes);
+		
+		for(int i=1; i<newNodes.size(); i++)
+		{
+			DefaultMutableTreeNode newNode = newNodes.get(i);
+			long id = taskTree.getTaskId(newNode);
+			DefaultMutableTreeNode match = id!=0L ? taskTree.getTask(id) : null;
+			if(match!=null && match!=root && match.getRoot()==root && !claimed.containsKey(match))
+			{
+				idMatches.put(newNode, match);
+				claimed.put(match, Boolean.TRUE);
+			}
+		}
+		markBranches(newNodes, idMatches, matchedBranches);
+		markBranches(nodes, claimed, claimedBranches);
+		
+		reconcile(root, newRoot);
+		
+		// nothing still wanted is left in these branches now
+		for(DefaultMutableTreeNode node : leftovers)
+		{
+			if(node.getRoot()==root)
+			{
+				taskTree.removeTask(node);
+				removed ++;
+			}
+		}
+	}
+	
+	protected void reconcile(DefaultMutableTreeNode parent, DefaultMutableTreeNode newParent)
+	{
+		int count = newParent.getChildCount();
+		DefaultMutableTreeNode[] matches = new DefaultMutableTreeNode[count];
+		for(int i=0; i<count; i++){
+			matches[i] = idMatches.get(newParent.getChildAt(i));
+		}
+		
+		// existing children which no incoming task has claimed by id are matched 
+		// with incoming tasks that have no id
+		List<DefaultMutableTreeNode> candidates = new ArrayList<DefaultMutableTreeNode>();
+		for(int i=0; i<parent.getChildCount(); i++)
+		{
+			DefaultMutableTreeNode child = (DefaultMutableTreeNode)parent.getChildAt(i);
+			if(!claimed.containsKey(child)){
+				candidates.add(child);
+			}
+		}
+		Map<TreeNode,Boolean> used = new IdentityHashMap<TreeNode,Boolean>();
+		if(!candidates.isEmpty() && hasUnmatched(newParent, matches)){
+			matchWithoutIds(newParent, matches, candidates, used);
+		}
+		
+		// unwanted children go straight away, unless tasks claimed by id still 
+		// need moving out of them
+		for(DefaultMutableTreeNode child : candidates)
+		{
+			if(used.containsKey(child)){
+				continue;
+			}
+			if(claimedBranches.containsKey(child))
+			{
+				leftovers.add(child);
+			}
+			else
+			{
+				taskTree.removeTask(child);
+				removed ++;
+			}
+		}
+		
+		// children already here in the longest run of the right order stay put, and
+		// the rest are placed after their predecessor
+		boolean[] stay = findLongestOrderedRun(parent, matches);
+		for(int i=0; i<count; i++)
+		{
+			DefaultMutableTreeNode newChild = (DefaultMutableTreeNode)newParent.getChildAt(i);
+			String label = (String)newChild.getUserObject();
+			if(matches[i]==null)
+			{
+				matches[i] = taskTree.addTask(parent, placeAfter(parent, matches, i), label, 
+						taskTree.getTaskId(newChild));
+				added ++;
+				continue;
+			}
+			if(!stay[i])
+			{
+				int pos = placeAfter(parent, matches, i);
+				if(matches[i].getParent()==parent && parent.getIndex(matches[i]) < pos){
+					pos --;
+				}
+				taskTree.moveTask(matches[i], parent, pos);
+				moved ++;
+			}
+			if(!label.equals(matches[i].getUserObject()))
+			{
+				taskTree.renameTask(matches[i], label);
+				renamed ++;
+			}
+		}
+		
+		for(int i=0; i<count; i++)
+		{
+			DefaultMutableTreeNode newChild = (DefaultMutableTreeNode)newParent.getChildAt(i);
+			if(!isUnchanged(matches[i], newChild)){
+				reconcile(matches[i], newChild);
+			}
+		}
+	}
+	
+	protected int placeAfter(DefaultMutableTreeNode parent, DefaultMutableTreeNode[] matches, int i)
+	{
+		return i==0 ? 0 : parent.getIndex(matches[i-1])+1;
+	}
+	
+	protected boolean hasUnmatched(DefaultMutableTreeNode newParent, DefaultMutableTreeNode[] matches)
+	{
+		for(int i=0; i<matches.length; i++)
+		{
+			if(matches[i]==null && taskTree.getTaskId(newParent.getChildAt(i))==0L){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	protected void matchWithoutIds(DefaultMutableTreeNode newParent, DefaultMutableTreeNode[] matches,
+			List<DefaultMutableTreeNode> candidates, Map<TreeNode,Boolean> used)
+	{
+		Map<Long,LinkedList<DefaultMutableTreeNode>> byHash = new HashMap<Long,LinkedList<DefaultMutableTreeNode>>();
+		Map<String,LinkedList<DefaultMutableTreeNode>> byLabel = new HashMap<String,LinkedList<DefaultMutableTreeNode>>();
+		LinkedList<DefaultMutableTreeNode> byPosition = new LinkedList<DefaultMutableTreeNode>(candidates);
+		for(DefaultMutableTreeNode candidate : candidates)
+		{
+			addCandidate(byHash, hashes.get(candidate), candidate);
+			addCandidate(byLabel, (String)candidate.getUserObject(), candidate);
+		}
+		for(int i=0; i<matches.length; i++)
+		{
+			DefaultMutableTreeNode newChild = (DefaultMutableTreeNode)newParent.getChildAt(i);
+			if(matches[i]==null && taskTree.getTaskId(newChild)==0L){
+				matches[i] = takeIdentical(byHash.get(hashes.get(newChild)), newChild, used);
+			}
+		}
+		for(int i=0; i<matches.length; i++)
+		{
+			DefaultMutableTreeNode newChild = (DefaultMutableTreeNode)newParent.getChildAt(i);
+			if(matches[i]==null && taskTree.getTaskId(newChild)==0L){
+				matches[i] = takeCandidate(byLabel, (String)newChild.getUserObject(), used);
+			}
+		}
+		for(int i=0; i<matches.length; i++)
+		{
+			while(matches[i]==null && taskTree.getTaskId(newParent.getChildAt(i))==0L 
+					&& !byPosition.isEmpty())
+			{
+				DefaultMutableTreeNode candidate = byPosition.removeFirst();
+				if(!used.containsKey(candidate))
+				{
+					used.put(candidate, Boolean.TRUE);
+					matches[i] = candidate;
+				}
+			}
+		}
+	}
+	
+	// marks the largest set of matches already under the parent in increasing
+	// order, which is patience sorting on their current positions
+	protected boolean[] findLongestOrderedRun(DefaultMutableTreeNode parent, 
+			DefaultMutableTreeNode[] matches)
+	{
+		int count = matches.length;
+		int[] positions = new int[count];
+		int[] tails = new int[count];
+		int[] previous = new int[count];
+		int length = 0;
+		for(int i=0; i<count; i++)
+		{
+			positions[i] = matches[i]!=null && matches[i].getParent()==parent 
+					? parent.getIndex(matches[i]) : -1;
+			if(positions[i] < 0){
+				continue;
+			}
+			int low = 0;
+			int high = length;
+			while(low < high)
+			{
+				int mid = (low+high) >>> 1;
+				if(positions[tails[mid]] < positions[i]){
+					low = mid+1;
+				}else{
+					high = mid;
+				}
+			}
+			previous[i] = low > 0 ? tails[low-1] : -1;
+			tails[low] = i;
+			if(low==length){
+				length ++;
+			}
+		}
+		boolean[] stay = new boolean[count];
+		for(int i = length>0 ? tails[length-1] : -1; i>=0; i=previous[i]){
+			stay[i] = true;
+		}
+		return stay;
+	}
+	
+	// identical subtrees can be left alone, unless a task inside either is 
+	// matched by id with one somewhere else
+	protected boolean isUnchanged(DefaultMutableTreeNode node, DefaultMutableTreeNode newNode)
+	{
+		return !claimedBranches.containsKey(node) && !matchedBranches.containsKey(newNode)
+				&& isIdentical(node, newNode);
+	}
+	
+	// whether the subtrees have the same labels and shape. Different hashes rule 
+	// that out quickly, but equal ones can happen by chance, so they are checked.
+	protected boolean isIdentical(TreeNode node, TreeNode newNode)
+	{
+		Long hash = hashes.get(node);
+		if(hash==null || !hash.equals(hashes.get(newNode))){
+			return false;
+		}
+		Object label = ((DefaultMutableTreeNode)node).getUserObject();
+		Object newLabel = ((DefaultMutableTreeNode)newNode).getUserObject();
+		if(label==null ? newLabel!=null : !label.equals(newLabel)){
+			return false;
+		}
+		if(node.getChildCount()!=newNode.getChildCount()){
+			return false;
+		}
+		for(int i=0; i<node.getChildCount(); i++)
+		{
+			if(!isIdentical(node.getChildAt(i), newNode.getChildAt(i))){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	protected <K> void addCandidate(Map<K,LinkedList<DefaultMutableTreeNode>> candidates, K key, 
+			DefaultMutableTreeNode node)
+	{
+		LinkedList<DefaultMutableTreeNode> list = candidates.get(key);
+		if(list==null)
+		{
+			list = new LinkedList<DefaultMutableTreeNode>();
+			candidates.put(key, list);
+		}
+		list.add(node);
+	}
+	
+	// takes the first unused candidate identical to the given task, leaving those
+	// whose hash only matches by chance for the later passes
+	protected DefaultMutableTreeNode takeIdentical(List<DefaultMutableTreeNode> candidates, 
+			DefaultMutableTreeNode newNode, Map<TreeNode,Boolean> used)
+	{
+		if(candidates==null){
+			return null;
+		}
+		Iterator<DefaultMutableTreeNode> i = candidates.iterator();
+		while(i.hasNext())
+		{
+			DefaultMutableTreeNode node = i.next();
+			if(used.containsKey(node))
+			{
+				i.remove();
+			}
+			else if(isIdentical(node, newNode))
+			{
+				i.remove();
+				used.put(node, Boolean.TRUE);
+				return node;
+			}
+		}
+		return null;
+	}
+	
+	protected <K> DefaultMutableTreeNode takeCandidate(Map<K,LinkedList<DefaultMutableTreeNode>> candidates, 
+			K key, Map<TreeNode,Boolean> used)
+	{
+		LinkedList<DefaultMutableTreeNode> list = candidates.get(key);
+		while(list!=null && !list.isEmpty())
+		{
+			DefaultMutableTreeNode node = list.removeFirst();
+			if(!used.containsKey(node))
+			{
+				used.put(node, Boolean.TRUE);
+				return node;
+			}
+		}
+		return null;
+	}
+	
+	// lists the tree in preorder, so that going backwards visits children first
+	protected List<DefaultMutableTreeNode> listTree(DefaultMutableTreeNode treeNode)
+	{
+		List<DefaultMutableTreeNode> nodes = new ArrayList<DefaultMutableTreeNode>();
+		List<DefaultMutableTreeNode> pending = new ArrayList<DefaultMutableTreeNode>();
+		pending.add(treeNode);
+		while(!pending.isEmpty())
+		{
+			DefaultMutableTreeNode node = pending.remove(pending.size()-1);
+			nodes.add(node);
+			for(int i=node.getChildCount()-1; i>=0; i--){
+				pending.add((DefaultMutableTreeNode)node.getChildAt(i));
+			}
+		}
+		return nodes;
+	}
+	
+	// hashes each subtree's labels and shape, ignoring ids
+	protected void hashTree(List<DefaultMutableTreeNode> nodes)
+	{
+		for(int n=nodes.size()-1; n>=0; n--)
+		{
+			DefaultMutableTreeNode node = nodes.get(n);
+			Object label = node.getUserObject();
+			long hash = label!=null ? label.hashCode() : 0;
+			hash = hash * 0x9e3779b97f4a7c15L + node.getChildCount();
+			for(int i=0; i<node.getChildCount(); i++){
+				hash = (hash ^ hashes.get(node.getChildAt(i))) * 0x100000001b3L;
+			}
+			hashes.put(node, hash ^ (hash >>> 29));
+		}
+	}
+	
+	// collects the given nodes and all of their ancestors
+	protected void markBranches(List<DefaultMutableTreeNode> all, Map<TreeNode,?> nodes, 
+			Map<TreeNode,Boolean> branches)
+	{
+		for(int n=all.size()-1; n>=0; n--)
+		{
+			DefaultMutableTreeNode node = all.get(n);
+			if(nodes.containsKey(node) || branches.containsKey(node))
+			{
+				branches.put(node, Boolean.TRUE);
+				if(node.getParent()!=null){
+					branches.put(node.getParent(), Boolean.TRUE);
+				}
+			}
+		}
+	}
+}
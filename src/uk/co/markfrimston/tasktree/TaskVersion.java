@@ -0,0 +1,418 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+/*
+ * An unchangeable copy of the task tree. Each edit makes a new version by 
+ * copying only the tasks on the path down to the change and sharing the rest, so
+ * background threads can save or upload whichever version they were handed while 
+ * the live tree carries on changing. Small lists of children are kept in an 
+ * array, and large ones in a balanced tree so that an edit copies a few tree 
+ * nodes rather than the whole list. Branches not yet read from the binary 
+ * snapshot stay undecoded until something walks into them.
+ */
+public class TaskVersion
+{
+	protected static final TaskVersion[] NO_CHILDREN = new TaskVersion[0];
+	protected static final int TREE_THRESHOLD = 64;
+	
+	protected final String label;
+	protected final long id;
+	protected final TaskSnapshot snapshot;
+	protected final int record;
+	// decoding a snapshot branch twice gives equal children, so races are harmless
+	protected volatile TaskVersion[] children;
+	protected volatile ChildTree childTree;
+	
+	protected TaskVersion(String label, long id, TaskVersion[] children)
+	{
+		this(label, id, children, null);
+	}
+	
+	// takes whichever of the children are given, switching to a tree once an array 
+	// grows too big and back again once the tree is well under that size
+	protected TaskVersion(String label, long id, TaskVersion[] children, ChildTree childTree)
+	{
+		this.label = label;
+		this.id = id;
+		this.snapshot = null;
+		this.record = 0;
+		if(children!=null && children.length > TREE_THRESHOLD)
+		{
+			childTree = ChildTree.build(children, 0, children.length);
+			children = null;
+		}
+		else if(children==null && ChildTree.sizeOf(childTree) < TREE_THRESHOLD/2)
+		{
+			children = ChildTree.toArray(childTree);
+			childTree = null;
+		}
+		this.children = children;
+		this.childTree = childTree;
+	}
+	
+	protected TaskVersion(String label, long id, TaskSnapshot snapshot, int record)
+	{
+		this.label = label;
+		this.id = id;
+		this.snapshot = snapshot;
+		this.record = record;
+	}
+	
+	// copies a live branch, keeping undecoded snapshot branches undecoded
+	public static TaskVersion of(DefaultMutableTreeNode node)
+	{
+		long id = node instanceof TaskNode ? ((TaskNode)node).getId() : 0L;
+		String label = (String)node.getUserObject();
+		if(node instanceof LazyTaskNode && !((LazyTaskNode)node).isMaterialised())
+		{
+			LazyTaskNode lazyNode = (LazyTaskNode)node;
+			return new TaskVersion(label, id, lazyNode.getSnapshot(), lazyNode.getRecord());
+		}
+		TaskVersion[] children = new TaskVersion[node.getChildCount()];
+		for(int i=0; i<children.length; i++){
+			children[i] = of((DefaultMutableTreeNode)node.getChildAt(i));
+		}
+		return new TaskVersion(label, id, children);
+	}
+	
+	public String getLabel()
+	{
+		return label;
+	}
+	
+	public long getId()
+	{
+		return id;
+	}
+	
+	public boolean isDecoded()
+	{
+		return children!=null || childTree!=null;
+	}
+	
+	public TaskSnapshot getSnapshot()
+	{
+		return snapshot;
+	}
+	
+	public int getRecord()
+	{
+		return record;
+	}
+	
+	public int getChildCount()
+	{
+		TaskVersion[] children = this.children;
+		if(children!=null){
+			return children.length;
+		}
+		ChildTree childTree = this.childTree;
+		if(childTree!=null){
+			return childTree.size;
+		}
+		return snapshot.getChildCount(record);
+	}
+	
+	public TaskVersion getChildAt(int index)
+	{
+		decode();
+		TaskVersion[] children = this.children;
+		if(children!=null){
+			return children[index];
+		}
+		return childTree.get(index);
+	}
+	
+	protected void decode()
+	{
+		if(isDecoded()){
+			return;
+		}
+		TaskVersion[] decoded = new TaskVersion[snapshot.getChildCount(record)];
+		int child = record + TaskSnapshot.RECORD_LENGTH;
+		for(int i=0; i<decoded.length; i++)
+		{
+			decoded[i] = new TaskVersion(snapshot.getLabel(child), snapshot.getId(child), 
+					snapshot, child);
+			child += TaskSnapshot.RECORD_LENGTH + snapshot.getSubtreeLength(child);
+		}
+		if(decoded.length > TREE_THRESHOLD){
+			childTree = ChildTree.build(decoded, 0, decoded.length);
+		}else{
+			children = decoded;
+		}
+	}
+	
+	// the task at the given child indices below this one
+	public TaskVersion getDescendant(int[] path)
+	{
+		TaskVersion node = this;
+		for(int index : path){
+			node = node.getChildAt(index);
+		}
+		return node;
+	}
+	
+	public TaskVersion insert(int[] parentPath, int index, TaskVersion child)
+	{
+		TaskVersion parent = getDescendant(parentPath);
+		return replace(parentPath, 0, parent.insertChild(index, child));
+	}
+	
+	public TaskVersion remove(int[] path)
+	{
+		int[] parentPath = new int[path.length-1];
+		System.arraycopy(path, 0, parentPath, 0, parentPath.length);
+		TaskVersion parent = getDescendant(parentPath);
+		return replace(parentPath, 0, parent.removeChild(path[path.length-1]));
+	}
+	
+	public TaskVersion rename(int[] path, String label)
+	{
+		TaskVersion node = getDescendant(path);
+		TaskVersion renamed = node.isDecoded() ? new TaskVersion(label, node.id, node.children, node.childTree)
+				: new TaskVersion(label, node.id, node.snapshot, node.record);
+		return replace(path, 0, renamed);
+	}
+	
+	// copies the tasks down the path, swapping in the given one at the end
+	protected TaskVersion replace(int[] path, int depth, TaskVersion replacement)
+	{
+		if(depth==path.length){
+			return replacement;
+		}
+		int index = path[depth];
+		return setChild(index, getChildAt(index).replace(path, depth+1, replacement));
+	}
+	
+	protected TaskVersion insertChild(int index, TaskVersion child)
+	{
+		checkIndex(index, getChildCount()+1);
+		decode();
+		TaskVersion[] children = this.children;
+		if(children==null){
+			return new TaskVersion(label, id, null, ChildTree.insert(childTree, index, child));
+		}
+		TaskVersion[] newChildren = new TaskVersion[children.length+1];
+		System.arraycopy(children, 0, newChildren, 0, index);
+		newChildren[index] = child;
+		System.arraycopy(children, index, newChildren, index+1, children.length-index);
+		return new TaskVersion(label, id, newChildren);
+	}
+	
+	protected TaskVersion removeChild(int index)
+	{
+		checkIndex(index, getChildCount());
+		decode();
+		TaskVersion[] children = this.children;
+		if(children==null){
+			return new TaskVersion(label, id, null, ChildTree.remove(childTree, index));
+		}
+		TaskVersion[] newChildren = children.length==1 ? NO_CHILDREN 
+				: new TaskVersion[children.length-1];
+		System.arraycopy(children, 0, newChildren, 0, index);
+		System.arraycopy(children, index+1, newChildren, index, newChildren.length-index);
+		return new TaskVersion(label, id, newChildren);
+	}
+	
+	protected TaskVersion setChild(int index, TaskVersion child)
+	{
+		checkIndex(index, getChildCount());
+		decode();
+		TaskVersion[] children = this.children;
+		if(children==null){
+			return new TaskVersion(label, id, null, childTree.set(index, child));
+		}
+		TaskVersion[] newChildren = children.clone();
+		newChildren[index] = child;
+		return new TaskVersion(label, id, newChildren);
+	}
+	
+	protected static void checkIndex(int index, int limit)
+	{
+		if(index < 0 || index >= limit){
+			throw new ArrayIndexOutOfBoundsException("index "+index+" out of range");
+		}
+	}
+	
+	/*
+	 * Unchangeable AVL tree of a large list of children, ordered by position. 
+	 * Each node knows the size of its subtree so children can be found by index,
+	 * and an edit copies only the nodes on the path to it.
+	 */
+	protected static class ChildTree
+	{
+		protected final ChildTree left;
+		protected final TaskVersion task;
+		protected final ChildTree right;
+		protected final int size;
+		protected final int height;
+		
+		protected ChildTree(ChildTree left, TaskVersion task, ChildTree right)
+		{
+			this.left = left;
+			this.task = task;
+			this.right = right;
+			this.size = sizeOf(left) + sizeOf(right) + 1;
+			this.height = Math.max(heightOf(left), heightOf(right)) + 1;
+		}
+		
+		protected static int sizeOf(ChildTree tree)
+		{
+			return tree!=null ? tree.size : 0;
+		}
+		
+		protected static int heightOf(ChildTree tree)
+		{
+			return tree!=null ? tree.height : 0;
+		}
+		
+		protected TaskVersion get(int index)
+		{
+			checkIndex(index, size);
+			ChildTree node = this;
+			while(true)
+			{
+				int leftSize = sizeOf(node.left);
+				if(index < leftSize)
+				{
+					node = node.left;
+				}
+				else if(index == leftSize)
+				{
+					return node.task;
+				}
+				else
+				{
+					index -= leftSize+1;
+					node = node.right;
+				}
+			}
+		}
+		
+		protected ChildTree set(int index, TaskVersion task)
+		{
+			int leftSize = sizeOf(left);
+			if(index < leftSize){
+				return new ChildTree(left.set(index, task), this.task, right);
+			}
+			if(index == leftSize){
+				return new ChildTree(left, task, right);
+			}
+			return new ChildTree(left, this.task, right.set(index-leftSize-1, task));
+		}
+		
+		protected static ChildTree insert(ChildTree tree, int index, TaskVersion task)
+		{
+			if(tree==null){
+				return new ChildTree(null, task, null);
+			}
+			int leftSize = sizeOf(tree.left);
+			if(index <= leftSize){
+				return balance(insert(tree.left, index, task), tree.task, tree.right);
+			}
+			return balance(tree.left, tree.task, insert(tree.right, index-leftSize-1, task));
+		}
+		
+		protected static ChildTree remove(ChildTree tree, int index)
+		{
+			int leftSize = sizeOf(tree.left);
+			if(index < leftSize){
+				return balance(remove(tree.left, index), tree.task, tree.right);
+			}
+			if(index > leftSize){
+				return balance(tree.left, tree.task, remove(tree.right, index-leftSize-1));
+			}
+			if(tree.left==null){
+				return tree.right;
+			}
+			if(tree.right==null){
+				return tree.left;
+			}
+			return balance(tree.left, tree.right.get(0), remove(tree.right, 0));
+		}
+		
+		// joins two subtrees whose heights differ by at most two, rotating to keep 
+		// them within one
+		protected static ChildTree balance(ChildTree left, TaskVersion task, ChildTree right)
+		{
+			int leftHeight = heightOf(left);
+			int rightHeight = heightOf(right);
+			if(leftHeight > rightHeight+1)
+			{
+				if(heightOf(left.left) >= heightOf(left.right)){
+					return new ChildTree(left.left, left.task, new ChildTree(left.right, task, right));
+				}
+				return new ChildTree(new ChildTree(left.left, left.task, left.right.left), 
+						left.right.task, new ChildTree(left.right.right, task, right));
+			}
+			if(rightHeight > leftHeight+1)
+			{
+				if(heightOf(right.right) >= heightOf(right.left)){
+					return new ChildTree(new ChildTree(left, task, right.left), right.task, right.right);
+				}
+				return new ChildTree(new ChildTree(left, task, right.left.left), 
+						right.left.task, new ChildTree(right.left.right, right.task, right.right));
+			}
+			return new ChildTree(left, task, right);
+		}
+		
+		protected static ChildTree build(TaskVersion[] tasks, int start, int end)
+		{
+			if(start >= end){
+				return null;
+			}
+			int mid = (start+end) >>> 1;
+			return new ChildTree(build(tasks, start, mid), tasks[mid], build(tasks, mid+1, end));
+		}
+		
+		protected static TaskVersion[] toArray(ChildTree tree)
+		{
+			if(tree==null){
+				return NO_CHILDREN;
+			}
+			TaskVersion[] tasks = new TaskVersion[tree.size];
+			tree.copyInto(tasks, 0);
+			return tasks;
+		}
+		
+		protected void copyInto(TaskVersion[] tasks, int offset)
+		{
+			if(left!=null){
+				left.copyInto(tasks, offset);
+			}
+			offset += sizeOf(left);
+			tasks[offset] = task;
+			if(right!=null){
+				right.copyInto(tasks, offset+1);
+			}
+		}
+	}
+}
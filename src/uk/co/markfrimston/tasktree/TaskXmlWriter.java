@@ -0,0 +1,264 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package uk.co.markfrimston.tasktree;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Writes the task list xml directly as UTF-8 bytes, producing exactly the same
+ * output as serialising the document from TaskTree.saveToDocument through a
+ * Transformer and XmlPrologBreakFilterWriter.
+ */
+public class TaskXmlWriter
+{
+	protected static final byte[] PROLOG = ascii(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<tasklist>\n\t<tasks");
+	protected static final byte[] TASK_START = ascii("<task ");
+	protected static final byte[] ID_START = ascii("id=\"");
+	protected static final byte[] LABEL_START = ascii("label=\"");
+	protected static final byte[] TASK_END = ascii("</task>");
+	protected static final byte[] TASKS_END = ascii("</tasks>");
+	protected static final byte[] TASKLIST_END = ascii("\n</tasklist>");
+	protected static final byte[] EMPTY_END = ascii("/>");
+	protected static final byte[] AMP = ascii("&amp;");
+	protected static final byte[] LT = ascii("&lt;");
+	protected static final byte[] GT = ascii("&gt;");
+	protected static final byte[] QUOT = ascii("&quot;");
+	protected static final int BUFFER_SIZE = 8192;
+
+	protected OutputStream out;
+	protected byte[] buffer = new byte[BUFFER_SIZE];
+	protected int pos = 0;
+	protected int depth = 1;
+	protected boolean tagOpen = false;
+
+	public TaskXmlWriter(OutputStream out)
+	{
+		this.out = out;
+	}
+
+	protected static byte[] ascii(String s)
+	{
+		byte[] bytes = new byte[s.length()];
+		for(int i=0; i<s.length(); i++){
+			bytes[i] = (byte)s.charAt(i);
+		}
+		return bytes;
+	}
+
+	public void writeTree(TaskVersion root) throws IOException
+	{
+		startDocument();
+		writeChildren(root);
+		endDocument();
+	}
+
+	public void writeTree(TaskStore store) throws IOException
+	{
+		startDocument();
+		int node = store.getFirstChild(TaskStore.ROOT);
+		while(node != TaskStore.NONE)
+		{
+			startTask(store.getId(node), store.getLabel(node));
+			if(store.getFirstChild(node) != TaskStore.NONE)
+			{
+				node = store.getFirstChild(node);
+				continue;
+			}
+			// close tasks until one has a next sibling
+			endTask();
+			while(store.getNextSibling(node)==TaskStore.NONE && store.getParent(node)!=TaskStore.ROOT)
+			{
+				node = store.getParent(node);
+				endTask();
+			}
+			node = store.getNextSibling(node);
+		}
+		endDocument();
+	}
+
+	protected void writeChildren(TaskVersion node) throws IOException
+	{
+		for(int i=0; i<node.getChildCount(); i++)
+		{
+			TaskVersion child = node.getChildAt(i);
+			startTask(child.getId(), child.getLabel());
+			if(!child.isDecoded()){
+				// copy undecoded subtrees straight from the snapshot
+				child.getSnapshot().writeChildren(child.getRecord(), this);
+			}else{
+				writeChildren(child);
+			}
+			endTask();
+		}
+	}
+
+	public void startDocument() throws IOException
+	{
+		write(PROLOG);
+		depth = 1;
+		tagOpen = true;
+	}
+
+	// attributes are in name order, as the DOM serialiser writes them. An id of
+	// 0 is left out.
+	public void startTask(long id, String label) throws IOException
+	{
+		if(tagOpen){
+			write('>');
+		}
+		depth++;
+		writeIndent(depth);
+		write(TASK_START);
+		if(id!=0L)
+		{
+			write(ID_START);
+			writeAscii(TaskIdMap.format(id));
+			write('"');
+			write(' ');
+		}
+		write(LABEL_START);
+		writeEscaped(label);
+		write('"');
+		tagOpen = true;
+	}
+
+	public void endTask() throws IOException
+	{
+		closeElement(TASK_END);
+	}
+
+	public void endDocument() throws IOException
+	{
+		closeElement(TASKS_END);
+		write(TASKLIST_END);
+		flush();
+	}
+
+	public void flush() throws IOException
+	{
+		out.write(buffer, 0, pos);
+		pos = 0;
+		out.flush();
+	}
+
+	protected void closeElement(byte[] endTag) throws IOException
+	{
+		if(tagOpen){
+			write(EMPTY_END);
+		}else{
+			writeIndent(depth);
+			write(endTag);
+		}
+		tagOpen = false;
+		depth--;
+	}
+
+	protected void writeIndent(int tabs) throws IOException
+	{
+		write('\n');
+		for(int i=0; i<tabs; i++){
+			write('\t');
+		}
+	}
+
+	// escapes attribute text the same way the JDK serialiser does, encoding
+	// everything else as UTF-8
+	protected void writeEscaped(String text) throws IOException
+	{
+		for(int i=0; i<text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch(c)
+			{
+				case '&': write(AMP); break;
+				case '<': write(LT); break;
+				case '>': write(GT); break;
+				case '"': write(QUOT); break;
+				default:
+					if(c < 0x20){
+						writeCharRef(c);
+					}else if(c < 0x80){
+						write(c);
+					}else if(c < 0x800){
+						write(0xc0 | (c >> 6));
+						write(0x80 | (c & 0x3f));
+					}else if(Character.isHighSurrogate(c)){
+						if(i+1 >= text.length() || !Character.isLowSurrogate(text.charAt(i+1))){
+							throw new IOException("Invalid UTF-16 surrogate detected: "
+									+Integer.toHexString(c));
+						}
+						writeCharRef(Character.toCodePoint(c, text.charAt(i+1)));
+						i++;
+					}else if(Character.isLowSurrogate(c)){
+						writeCharRef(c);
+					}else{
+						write(0xe0 | (c >> 12));
+						write(0x80 | ((c >> 6) & 0x3f));
+						write(0x80 | (c & 0x3f));
+					}
+			}
+		}
+	}
+
+	protected void writeAscii(String text) throws IOException
+	{
+		for(int i=0; i<text.length(); i++){
+			write(text.charAt(i));
+		}
+	}
+
+	protected void writeCharRef(int codePoint) throws IOException
+	{
+		write('&');
+		write('#');
+		int divisor = 1;
+		while(divisor <= codePoint/10){
+			divisor *= 10;
+		}
+		for(; divisor>0; divisor/=10){
+			write('0' + (codePoint/divisor)%10);
+		}
+		write(';');
+	}
+
+	protected void write(int b) throws IOException
+	{
+		if(pos == buffer.length){
+			out.write(buffer, 0, pos);
+			pos = 0;
+		}
+		buffer[pos++] = (byte)b;
+	}
+
+	protected void write(byte[] bytes) throws IOException
+	{
+		for(int i=0; i<bytes.length; i++){
+			write(bytes[i]);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package uk.co.markfrimston.tasktree.test;
+
+import org.junit.*;
+import java.io.*;
+import uk.co.markfrimston.tasktree.*;
+import javax.swing.event.*;
+import javax.swing.tree.*;
+
+import static org.junit.Assert.*;
+
+public class BatchTest
+{
+	protected static final String TEST_PATH = "./testbatch/";
+	
+	protected TaskTree tt;
+	protected DefaultMutableTreeNode foo;
+	protected DefaultMutableTreeNode bar;
+	protected DefaultMutableTreeNode weh;
+	protected int events;
+	
+	protected void cleanUpFiles()
+	{
+		File path = new File(TEST_PATH);
+		if(path.exists())
+		{
+			for(File file : path.listFiles())
+			{
+				file.delete();
+			}		
+		}
+		path.delete();
+	}
+	
+	protected String getNodeLabel(int... nodeIndices)
+	{
+		DefaultMutableTreeNode currentNode = tt.getRoot();
+		for(int nodeIndex : nodeIndices)
+		{
+			currentNode = (DefaultMutableTreeNode)currentNode.getChildAt(nodeIndex);
+		}
+		return (String)currentNode.getUserObject();
+	}
+	
+	// checks the tree is as set up:
+	// |- foo
+	// |   '- bar
+	// '- weh
+	protected void checkOriginalTree()
+	{
+		assertEquals(2, tt.getRoot().getChildCount());
+		assertEquals("foo", getNodeLabel(0));
+		assertEquals(1, tt.getRoot().getChildAt(0).getChildCount());
+		assertEquals("bar", getNodeLabel(0, 0));
+		assertEquals("weh", getNodeLabel(1));
+		assertEquals(0, tt.getRoot().getChildAt(1).getChildCount());
+	}
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		cleanUpFiles();
+		tt = new TaskTree(TEST_PATH);
+		tt.load();
+		foo = tt.addTask(tt.getRoot(), 0, "foo");
+		bar = tt.addTask(foo, 0, "bar");
+		weh = tt.addTask(tt.getRoot(), 1, "weh");
+		
+		events = 0;
+		tt.getTreeModel().addTreeModelListener(new TreeModelListener(){
+			public void treeNodesChanged(TreeModelEvent e){ events ++; }
+			public void treeNodesInserted(TreeModelEvent e){ events ++; }
+			public void treeNodesRemoved(TreeModelEvent e){ events ++; }
+			public void treeStructureChanged(TreeModelEvent e){ events ++; }
+		});
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		tt.close();
+		cleanUpFiles();
+	}
+	
+	@Test
+	public void testCommit() throws Exception
+	{
+		/*
+		 * Edits in a batch should all be made, and views told once
+		 */
+		tt.batch(new TaskBatch(){
+			public void run(TaskTree taskTree) throws Exception
+			{
+				taskTree.addTask(taskTree.getRoot(), 2, "meh");
+				taskTree.renameTask(foo, "foo2");
+				taskTree.moveTask(bar, taskTree.getRoot(), 0);
+				taskTree.removeTask(weh);
+			}
+		});
+		
+		assertEquals(1, events);
+		assertEquals(3, tt.getRoot().getChildCount());
+		assertEquals("bar", getNodeLabel(0));
+		assertEquals("foo2", getNodeLabel(1));
+		assertEquals("meh", getNodeLabel(2));
+		assertNull(tt.getTask(tt.getTaskId(weh)));
+	}
+	
+	@Test
+	public void testRollback() throws Exception
+	{
+		/*
+		 * If a batch fails part way, the edits it made should be undone, 
+		 * views told nothing, and the tree on disk left as it was
+		 */
+		final long fooId = tt.getTaskId(foo);
+		final long wehId = tt.getTaskId(weh);
+		final DefaultMutableTreeNode[] added = new DefaultMutableTreeNode[1];
+		boolean thrown = false;
+		try
+		{
+			tt.batch(new TaskBatch(){
+				public void run(TaskTree taskTree) throws Exception
+				{
+					added[0] = taskTree.addTask(taskTree.getRoot(), 2, "meh");
+					taskTree.renameTask(foo, "foo2");
+					taskTree.moveTask(bar, taskTree.getRoot(), 0);
+					taskTree.removeTask(weh);
+					throw new Exception("failed");
+				}
+			});
+		}
+		catch(Exception e)
+		{
+			thrown = true;
+		}
+		
+		assertTrue(thrown);
+		assertEquals(0, events);
+		checkOriginalTree();
+		assertSame(foo, tt.getRoot().getChildAt(0));
+		assertSame(bar, foo.getChildAt(0));
+		assertSame(weh, tt.getRoot().getChildAt(1));
+		assertSame(foo, tt.getTask(fooId));
+		assertSame(weh, tt.getTask(wehId));
+		assertNull(tt.getTask(tt.getTaskId(added[0])));
+		
+		tt.close();
+		tt = new TaskTree(TEST_PATH);
+		tt.load();
+		checkOriginalTree();
+	}
+	
+	@Test
+	public void testNestedBatch() throws Exception
+	{
+		/*
+		 * A batch run inside another joins it, so a failure in the outer one 
+		 * undoes the inner one's edits too
+		 */
+		boolean thrown = false;
+		try
+		{
+			tt.batch(new TaskBatch(){
+				public void run(TaskTree taskTree) throws Exception
+				{
+					taskTree.batch(new TaskBatch(){
+						public void run(TaskTree taskTree) throws Exception
+						{
+							taskTree.renameTask(weh, "weh2");
+						}
+					});
+					taskTree.removeTask(foo);
+					throw new Exception("failed");
+				}
+			});
+		}
+		catch(Exception e)
+		{
+			thrown = true;
+		}
+		
+		assertTrue(thrown);
+		assertEquals(0, events);
+		checkOriginalTree();
+	}
+}
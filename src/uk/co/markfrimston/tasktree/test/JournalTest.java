@@ -0,0 +1,252 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package uk.co.markfrimston.tasktree.test;
+
+import org.junit.*;
+import java.io.*;
+import uk.co.markfrimston.tasktree.*;
+import javax.swing.tree.*;
+
+import static org.junit.Assert.*;
+
+public class JournalTest
+{
+	protected static final String TEST_PATH = "./testjournal/";
+	protected static final long CHECKPOINT_LENGTH = 100L;
+	protected static final long CHECKPOINT_CRC = 1234L;
+	
+	protected File file;
+	protected TaskJournal journal;
+	
+	protected void cleanUpFiles()
+	{
+		File path = new File(TEST_PATH);
+		if(path.exists())
+		{
+			for(File file : path.listFiles())
+			{
+				file.delete();
+			}		
+		}
+		path.delete();
+	}
+	
+	protected String getNodeLabel(DefaultMutableTreeNode root, int... nodeIndices)
+	{
+		DefaultMutableTreeNode currentNode = root;
+		for(int nodeIndex : nodeIndices)
+		{
+			currentNode = (DefaultMutableTreeNode)currentNode.getChildAt(nodeIndex);
+		}
+		return (String)currentNode.getUserObject();
+	}
+	
+	// logs the adding of a task and then adds it, as the task tree does
+	protected TaskNode add(DefaultMutableTreeNode parent, int childPos, String label, long id) 
+		throws IOException
+	{
+		journal.logAdd(parent, childPos, label, id);
+		TaskNode node = new TaskNode(label);
+		node.setId(id);
+		parent.insert(node, childPos);
+		return node;
+	}
+	
+	/*
+	 * |- foo2
+	 * |   '- bar
+	 * '- weh
+	 */
+	protected void logEdits(DefaultMutableTreeNode root) throws IOException
+	{
+		TaskNode foo = add(root, 0, "foo", 1L);
+		TaskNode weh = add(root, 1, "weh", 2L);
+		TaskNode bar = add(weh, 0, "bar", 3L);
+		TaskNode gone = add(root, 2, "gone", 4L);
+		journal.logMove(bar, foo, 0);
+		foo.insert(bar, 0);
+		journal.logRename(foo, "foo2");
+		foo.setUserObject("foo2");
+		journal.logRemove(gone);
+		gone.removeFromParent();
+	}
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		cleanUpFiles();
+		new File(TEST_PATH).mkdirs();
+		file = new File(TEST_PATH+"tasks.journal");
+		journal = new TaskJournal(file, TaskJournal.SyncPolicy.ALWAYS);
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		journal.close();
+		cleanUpFiles();
+	}
+	
+	@Test
+	public void testReplay() throws Exception
+	{
+		/*
+		 * Edits logged against a checkpoint should be replayed onto it
+		 */
+		assertEquals(0, journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, new TaskNode("root")));
+		logEdits(new TaskNode("root"));
+		journal.close();
+		
+		DefaultMutableTreeNode root = new TaskNode("root");
+		assertEquals(7, journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, root));
+		assertEquals(2, root.getChildCount());
+		assertEquals("foo2", getNodeLabel(root, 0));
+		assertEquals("bar", getNodeLabel(root, 0, 0));
+		assertEquals("weh", getNodeLabel(root, 1));
+		assertEquals(0, root.getChildAt(1).getChildCount());
+		assertEquals(3L, ((TaskNode)root.getChildAt(0).getChildAt(0)).getId());
+	}
+	
+	@Test
+	public void testTornTail() throws Exception
+	{
+		/*
+		 * A record cut short by a crash should be dropped and cut off the file, 
+		 * and edits logged afterwards should replay after the good records
+		 */
+		journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, new TaskNode("root"));
+		logEdits(new TaskNode("root"));
+		journal.close();
+		long goodLength = file.length();
+		
+		DefaultMutableTreeNode root = new TaskNode("root");
+		journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, root);
+		journal.logRename(root.getChildAt(1), "weh2");
+		journal.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			raf.setLength(raf.length()-3);
+		}finally{
+			raf.close();
+		}
+		
+		root = new TaskNode("root");
+		assertEquals(7, journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, root));
+		assertEquals(goodLength, file.length());
+		assertEquals("weh", getNodeLabel(root, 1));
+		
+		journal.logRename(root.getChildAt(1), "weh3");
+		journal.close();
+		root = new TaskNode("root");
+		assertEquals(8, journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, root));
+		assertEquals("weh3", getNodeLabel(root, 1));
+	}
+	
+	@Test
+	public void testCorruptRecord() throws Exception
+	{
+		/*
+		 * Replay should stop at a record whose CRC doesn't match
+		 */
+		journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, new TaskNode("root"));
+		DefaultMutableTreeNode root = new TaskNode("root");
+		add(root, 0, "foo", 1L);
+		long firstEnd = file.length();
+		add(root, 1, "bar", 2L);
+		journal.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			raf.seek(firstEnd+6);
+			raf.write(raf.read() ^ 0xff);
+		}finally{
+			raf.close();
+		}
+		
+		root = new TaskNode("root");
+		assertEquals(1, journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, root));
+		assertEquals(1, root.getChildCount());
+		assertEquals(firstEnd, file.length());
+	}
+	
+	@Test
+	public void testOtherCheckpoint() throws Exception
+	{
+		/*
+		 * A journal written against another checkpoint should be ignored
+		 */
+		journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, new TaskNode("root"));
+		logEdits(new TaskNode("root"));
+		journal.close();
+		
+		DefaultMutableTreeNode root = new TaskNode("root");
+		assertEquals(0, journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC+1, root));
+		assertEquals(0, root.getChildCount());
+	}
+	
+	@Test
+	public void testBadMoveRecord() throws Exception
+	{
+		/*
+		 * A move to a position that doesn't exist should stop the replay 
+		 * without losing the task it would have moved
+		 */
+		journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, new TaskNode("root"));
+		DefaultMutableTreeNode root = new TaskNode("root");
+		TaskNode foo = add(root, 0, "foo", 1L);
+		add(root, 1, "weh", 2L);
+		long goodLength = file.length();
+		journal.logMove(foo, root, 2);
+		journal.logRename(foo, "foo2");
+		journal.close();
+		
+		root = new TaskNode("root");
+		assertEquals(2, journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, root));
+		assertEquals(2, root.getChildCount());
+		assertEquals("foo", getNodeLabel(root, 0));
+		assertEquals("weh", getNodeLabel(root, 1));
+		assertEquals(goodLength, file.length());
+	}
+	
+	@Test
+	public void testMoveToEnd() throws Exception
+	{
+		/*
+		 * A move to the last position, counted without the task being moved,
+		 * should still replay
+		 */
+		journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, new TaskNode("root"));
+		DefaultMutableTreeNode root = new TaskNode("root");
+		TaskNode foo = add(root, 0, "foo", 1L);
+		add(root, 1, "weh", 2L);
+		journal.logMove(foo, root, 1);
+		journal.close();
+		
+		root = new TaskNode("root");
+		assertEquals(3, journal.open(CHECKPOINT_LENGTH, CHECKPOINT_CRC, root));
+		assertEquals("weh", getNodeLabel(root, 0));
+		assertEquals("foo", getNodeLabel(root, 1));
+	}
+}
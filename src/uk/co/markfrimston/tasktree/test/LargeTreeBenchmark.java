@@ -0,0 +1,147 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree.test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import javax.swing.*;
+import javax.swing.tree.*;
+import uk.co.markfrimston.tasktree.*;
+
+/*
+ * Drives expanding, scrolling and collapsing over a synthetic tree of about a
+ * million tasks, once with the html renderer and variable height rows used by 
+ * default and once in large tree view. Usage: LargeTreeBenchmark [fan out]
+ */
+public class LargeTreeBenchmark
+{
+	protected static final int DEFAULT_FAN_OUT = 100;
+	protected static final int VIEW_WIDTH = 400;
+	protected static final int VIEW_HEIGHT = 600;
+	protected static final int PAGES = 500;
+	
+	public static void main(String[] args) throws Exception
+	{
+		final int fanOut = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FAN_OUT;
+		SwingUtilities.invokeAndWait(new Runnable(){
+			public void run()
+			{
+				benchmark(fanOut, false);
+				benchmark(fanOut, true);
+			}
+		});
+	}
+	
+	protected static void benchmark(int fanOut, boolean large)
+	{
+		TaskTree taskTree = new TaskTree("./benchmark/");
+		DefaultMutableTreeNode root = new TaskNode("root");
+		for(int i=0; i<fanOut; i++)
+		{
+			DefaultMutableTreeNode top = new TaskNode("Task "+i);
+			root.add(top);
+			for(int j=0; j<fanOut; j++)
+			{
+				DefaultMutableTreeNode middle = new TaskNode("Task "+i+"."+j);
+				top.add(middle);
+				for(int k=0; k<fanOut; k++){
+					middle.add(new TaskNode("Task "+i+"."+j+"."+k+" & <more>"));
+				}
+			}
+		}
+		taskTree.setRoot(root);
+		taskTree.getTreeModel().setRoot(root);
+		
+		TaskJTree tree = new TaskJTree(taskTree.getTreeModel());
+		final TaskRenderCache renderCache = new TaskRenderCache();
+		taskTree.getTreeModel().addTreeModelListener(renderCache);
+		Icon icon = new ImageIcon(new BufferedImage(12, 12, BufferedImage.TYPE_INT_ARGB));
+		if(large)
+		{
+			tree.setLargeTreeView(new TaskCellPainter(renderCache, icon));
+		}
+		else
+		{
+			// as set up in Main
+			DefaultTreeCellRenderer renderer = new DefaultTreeCellRenderer(){
+				public Component getTreeCellRendererComponent(JTree tree, Object value, 
+						boolean selected, boolean expanded, boolean leaf, int row, boolean hasFocus) 
+				{
+					return super.getTreeCellRendererComponent(tree, 
+							renderCache.getText((DefaultMutableTreeNode)value, expanded), 
+							selected, expanded, leaf, row, hasFocus);
+				}
+			};
+			renderer.setLeafIcon(icon);
+			renderer.setOpenIcon(icon);
+			renderer.setClosedIcon(icon);
+			renderer.setBorder(BorderFactory.createEmptyBorder(4, 0, 4, 0));
+			tree.setCellRenderer(renderer);
+		}
+		tree.setRootVisible(false);
+		tree.setShowsRootHandles(true);
+		tree.expandPath(new TreePath(root));
+		
+		long start = System.nanoTime();
+		for(int i=0; i<fanOut; i++)
+		{
+			TreeNode top = root.getChildAt(i);
+			TreePath topPath = new TreePath(new Object[]{root, top});
+			tree.expandPath(topPath);
+			for(int j=0; j<fanOut; j++){
+				tree.expandPath(topPath.pathByAddingChild(top.getChildAt(j)));
+			}
+		}
+		long expandNanos = System.nanoTime() - start;
+		int rows = tree.getRowCount();
+		
+		start = System.nanoTime();
+		tree.setSize(tree.getPreferredSize());
+		BufferedImage image = new BufferedImage(VIEW_WIDTH, VIEW_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		int height = tree.getHeight();
+		for(int page=0; page<PAGES; page++)
+		{
+			int y = (int)((long)(height-VIEW_HEIGHT) * page / PAGES);
+			Graphics g = image.createGraphics();
+			g.translate(0, -y);
+			g.setClip(0, y, VIEW_WIDTH, VIEW_HEIGHT);
+			tree.paint(g);
+			g.dispose();
+		}
+		long scrollNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for(int i=0; i<fanOut; i++){
+			tree.collapsePath(new TreePath(new Object[]{root, root.getChildAt(i)}));
+		}
+		long collapseNanos = System.nanoTime() - start;
+		
+		System.out.println((large ? "large tree view: " : "default view:    ")+rows+" rows, expand "
+				+(expandNanos/1000000)+"ms, scroll "+PAGES+" pages "+(scrollNanos/1000000)+"ms, collapse "
+				+(collapseNanos/1000000)+"ms");
+	}
+}
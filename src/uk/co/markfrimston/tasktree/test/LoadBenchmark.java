@@ -0,0 +1,122 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package uk.co.markfrimston.tasktree.test;
+
+import java.io.*;
+import java.util.*;
+import javax.swing.JTree;
+import javax.swing.tree.*;
+import uk.co.markfrimston.tasktree.*;
+
+/*
+ * Compares loading a large task list by building it away from the tree model
+ * against inserting it through the model one task at a time, with a JTree 
+ * listening to the model in both cases. The per task time leaves out parsing,
+ * so it flatters the old path. Usage: LoadBenchmark [tasks]
+ */
+public class LoadBenchmark extends TaskTree
+{
+	protected static final int DEFAULT_TASKS = 200000;
+	protected static final int RUNS = 5;
+	
+	public LoadBenchmark()
+	{
+		super("./benchmark/");
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		int tasks = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_TASKS;
+		byte[] xml = makeTaskList(tasks);
+		System.out.println(tasks+" tasks, "+xml.length+" bytes");
+		for(int run=0; run<RUNS; run++)
+		{
+			System.gc();
+			LoadBenchmark bulk = new LoadBenchmark();
+			showTopLevel(bulk);
+			long start = System.nanoTime();
+			bulk.loadFromStream(new ByteArrayInputStream(xml));
+			long bulkNanos = System.nanoTime() - start;
+			
+			System.gc();
+			LoadBenchmark perNode = new LoadBenchmark();
+			showTopLevel(perNode);
+			start = System.nanoTime();
+			perNode.copyTasks(bulk.getRoot(), perNode.getRoot());
+			long perNodeNanos = System.nanoTime() - start;
+			
+			System.out.println("run "+(run+1)+": detached "+(bulkNanos/1000000)+"ms, per task "
+					+(perNodeNanos/1000000)+"ms");
+		}
+	}
+	
+	// a view with the top level tasks visible, as in the main window
+	protected static JTree showTopLevel(TaskTree taskTree)
+	{
+		JTree view = new JTree(taskTree.getTreeModel());
+		view.setRootVisible(false);
+		view.expandPath(new TreePath(taskTree.getRoot()));
+		return view;
+	}
+	
+	// the old load path: every task is inserted through the model
+	protected void copyTasks(TreeNode from, DefaultMutableTreeNode to)
+	{
+		for(int i=0; i<from.getChildCount(); i++)
+		{
+			DefaultMutableTreeNode child = (DefaultMutableTreeNode)from.getChildAt(i);
+			copyTasks(child, addTask(to, to.getChildCount(), (String)child.getUserObject()));
+		}
+	}
+	
+	// a tree ten wide at the top, with the rest spread randomly beneath
+	protected static byte[] makeTaskList(int tasks) throws Exception
+	{
+		Random random = new Random(1);
+		List<List<Integer>> children = new ArrayList<List<Integer>>();
+		for(int i=0; i<=tasks; i++){
+			children.add(new ArrayList<Integer>());
+		}
+		for(int i=1; i<=tasks; i++){
+			children.get(i<=10 ? 0 : 1+random.nextInt(i-1)).add(i);
+		}
+		StringBuilder xml = new StringBuilder("<tasklist><tasks>");
+		appendTasks(xml, children, 0);
+		xml.append("</tasks></tasklist>");
+		return xml.toString().getBytes("UTF-8");
+	}
+	
+	protected static void appendTasks(StringBuilder xml, List<List<Integer>> children, int task)
+	{
+		for(int child : children.get(task))
+		{
+			xml.append("<task label=\"Task ").append(child).append("\">");
+			appendTasks(xml, children, child);
+			xml.append("</task>");
+		}
+	}
+}
@@ -28,6 +28,7 @@ package uk.co.markfrimston.tasktree.test;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.zip.*;
 import org.apache.http.*;
 import org.apache.http.client.*;
 import org.apache.http.impl.client.*;
@@ -53,6 +54,8 @@ public class MockServer extends Thread
 	ServerSocket serverSocket;
 	Socket clientSocket;
 	RequestHandler requestHandler;
+	long requestBodyBytes = 0;
+	long responseBodyBytes = 0;
 	
 	public MockServer(int port, RequestHandler requestHandler)
 	{
@@ -65,6 +68,57 @@ public class MockServer extends Thread
 		this.requestHandler = requestHandler;
 	}
 	
+	// body bytes as sent over the wire, for measuring compression
+	public synchronized long getRequestBodyBytes()
+	{
+		return requestBodyBytes;
+	}
+	
+	public synchronized long getResponseBodyBytes()
+	{
+		return responseBodyBytes;
+	}
+	
+	public synchronized void resetByteCounts()
+	{
+		requestBodyBytes = 0;
+		responseBodyBytes = 0;
+	}
+	
+	// returns the body with any gzip or deflate content encoding undone
+	public static byte[] decode(Data data) throws IOException
+	{
+		String encoding = data.headers.containsKey("Content-Encoding") 
+			? data.headers.get("Content-Encoding").trim() : "";
+		InputStream in = new ByteArrayInputStream(data.body);
+		if(encoding.equalsIgnoreCase("gzip")){
+			in = new GZIPInputStream(in);
+		}else if(encoding.equalsIgnoreCase("deflate")){
+			in = new InflaterInputStream(in);
+		}else{
+			return data.body;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int bytesRead;
+		while((bytesRead=in.read(buffer)) != -1){
+			out.write(buffer, 0, bytesRead);
+		}
+		return out.toByteArray();
+	}
+	
+	// compresses the body with the given content encoding, gzip or deflate
+	public static void encode(Data data, String encoding) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DeflaterOutputStream out = encoding.equalsIgnoreCase("gzip") 
+			? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes);
+		out.write(data.body);
+		out.close();
+		data.body = bytes.toByteArray();
+		data.headers.put("Content-Encoding", encoding);
+	}
+	
 	public void run()
 	{
 		try
@@ -161,6 +215,9 @@ public class MockServer extends Thread
 						System.out.println("Request body: "+bodyString);
 					}
 					
+					synchronized(this){
+						requestBodyBytes += bodyBytes.length;
+					}
 					requestData.initialLine = initialLine;
 					requestData.headers = headers;
 					requestData.body = bodyBytes;
@@ -187,6 +244,9 @@ public class MockServer extends Thread
 					out.flush();
 					if(responseData.body!=null && responseData.body.length>0)
 					{
+						synchronized(this){
+							responseBodyBytes += responseData.body.length;
+						}
 						System.out.println("Response body: "+new String(responseData.body));
 						clientSocket.getOutputStream().write(responseData.body);
 						clientSocket.getOutputStream().write(new byte[]{'\r','\n'});
@@ -0,0 +1,233 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package uk.co.markfrimston.tasktree.test;
+
+import org.junit.*;
+import java.io.*;
+import java.util.*;
+import uk.co.markfrimston.tasktree.*;
+import javax.swing.tree.*;
+
+import static org.junit.Assert.*;
+
+public class StorageTest
+{
+	protected static final String TEST_PATH = "./teststorage/";
+	
+	protected TaskTree tt;
+	
+	protected void cleanUpFiles()
+	{
+		File path = new File(TEST_PATH);
+		if(path.exists())
+		{
+			for(File file : path.listFiles())
+			{
+				file.delete();
+			}		
+		}
+		path.delete();
+	}
+	
+	protected File writeFile(String name, String content) throws Exception
+	{
+		File path = new File(TEST_PATH);
+		path.mkdirs();
+		File file = new File(path, name);
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try{
+			writer.write(content);
+		}finally{
+			writer.close();
+		}
+		return file;
+	}
+	
+	protected String readFile(File file) throws Exception
+	{
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try{
+			StringBuilder content = new StringBuilder();
+			char[] buffer = new char[1024];
+			int read;
+			while((read = reader.read(buffer)) >= 0){
+				content.append(buffer, 0, read);
+			}
+			return content.toString();
+		}finally{
+			reader.close();
+		}
+	}
+	
+	protected String getNodeLabel(int... nodeIndices)
+	{
+		DefaultMutableTreeNode currentNode = tt.getRoot();
+		for(int nodeIndex : nodeIndices)
+		{
+			currentNode = (DefaultMutableTreeNode)currentNode.getChildAt(nodeIndex);
+		}
+		return (String)currentNode.getUserObject();
+	}
+	
+	@Before
+	public void setUp()
+	{
+		cleanUpFiles();
+		tt = new TaskTree(TEST_PATH);
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		tt.close();
+		cleanUpFiles();
+	}
+	
+	@Test
+	public void testBackupFallback() throws Exception
+	{
+		/*
+		 * If the tasks file has gone but its backup is still there, the backup
+		 * should be loaded and written back as the tasks file
+		 */
+		writeFile("tasks.xml.bak", 
+			"<tasklist>\n"+
+			"	<tasks>\n"+
+			"		<task label=\"foo\">\n"+
+			"			<task label=\"bar\" />\n"+
+			"		</task>\n"+
+			"	</tasks>\n"+
+			"</tasklist>\n");
+		
+		tt.load();
+		
+		assertEquals("foo", getNodeLabel(0));
+		assertEquals("bar", getNodeLabel(0, 0));
+		assertTrue(new File(TEST_PATH+"tasks.xml").exists());
+	}
+	
+	@Test
+	public void testCorruptFileFallback() throws Exception
+	{
+		/*
+		 * An unreadable tasks file should give way to its backup
+		 */
+		writeFile("tasks.xml", "<tasklist><tasks><task label=");
+		writeFile("tasks.xml.bak", "<tasklist><tasks><task label=\"foo\" /></tasks></tasklist>");
+		
+		tt.load();
+		
+		assertEquals(1, tt.getRoot().getChildCount());
+		assertEquals("foo", getNodeLabel(0));
+	}
+	
+	@Test
+	public void testStaleSnapshot() throws Exception
+	{
+		/*
+		 * A binary snapshot should not be used once the tasks file has been 
+		 * rewritten, even if its length and modification time are unchanged
+		 */
+		File file = writeFile("tasks.xml", "<tasklist><tasks><task label=\"foo\" /></tasks></tasklist>");
+		tt.setBinarySnapshot(true);
+		tt.load();
+		tt.close();
+		assertTrue(new File(TEST_PATH+"tasks.bin").exists());
+		
+		long modified = file.lastModified();
+		writeFile("tasks.xml", readFile(file).replace("\"foo\"", "\"fob\""));
+		file.setLastModified(modified);
+		
+		tt = new TaskTree(TEST_PATH);
+		tt.setBinarySnapshot(true);
+		tt.load();
+		
+		assertEquals("fob", getNodeLabel(0));
+	}
+	
+	@Test
+	public void testCurrentSnapshot() throws Exception
+	{
+		/*
+		 * An untouched tasks file should be loaded from its snapshot
+		 */
+		writeFile("tasks.xml", "<tasklist><tasks><task label=\"foo\"><task label=\"bar\" /></task></tasks></tasklist>");
+		tt.setBinarySnapshot(true);
+		tt.load();
+		tt.close();
+		
+		tt = new TaskTree(TEST_PATH);
+		tt.setBinarySnapshot(true);
+		tt.load();
+		
+		assertTrue(tt.getRoot().getChildAt(0) instanceof LazyTaskNode);
+		assertEquals("foo", getNodeLabel(0));
+		assertEquals("bar", getNodeLabel(0, 0));
+	}
+	
+	@Test
+	public void testUniqueIds() throws Exception
+	{
+		/*
+		 * Tasks loaded without an id, or with one already taken, should be 
+		 * given new ids, which are written back so they stay the same
+		 */
+		writeFile("tasks.xml", 
+			"<tasklist>\n"+
+			"	<tasks>\n"+
+			"		<task label=\"foo\" id=\"abc\">\n"+
+			"			<task label=\"bar\" id=\"abc\" />\n"+
+			"		</task>\n"+
+			"		<task label=\"weh\" />\n"+
+			"		<task label=\"meh\" id=\"!!\" />\n"+
+			"	</tasks>\n"+
+			"</tasklist>\n");
+		tt.load();
+		
+		DefaultMutableTreeNode foo = (DefaultMutableTreeNode)tt.getRoot().getChildAt(0);
+		DefaultMutableTreeNode bar = (DefaultMutableTreeNode)foo.getChildAt(0);
+		DefaultMutableTreeNode weh = (DefaultMutableTreeNode)tt.getRoot().getChildAt(1);
+		DefaultMutableTreeNode meh = (DefaultMutableTreeNode)tt.getRoot().getChildAt(2);
+		long[] ids = { tt.getTaskId(foo), tt.getTaskId(bar), tt.getTaskId(weh), tt.getTaskId(meh) };
+		assertEquals(Long.parseLong("abc", 36), ids[0]);
+		Set<Long> distinct = new HashSet<Long>();
+		for(long id : ids)
+		{
+			assertTrue(id!=0L);
+			distinct.add(id);
+		}
+		assertEquals(4, distinct.size());
+		assertSame(bar, tt.getTask(ids[1]));
+		tt.close();
+		
+		tt = new TaskTree(TEST_PATH);
+		tt.load();
+		assertEquals(ids[0], tt.getTaskId(tt.getRoot().getChildAt(0)));
+		assertEquals(ids[1], tt.getTaskId(tt.getRoot().getChildAt(0).getChildAt(0)));
+		assertEquals(ids[2], tt.getTaskId(tt.getRoot().getChildAt(1)));
+		assertEquals(ids[3], tt.getTaskId(tt.getRoot().getChildAt(2)));
+	}
+}
@@ -32,6 +32,7 @@ import org.apache.http.client.*;
 import org.apache.http.impl.client.*;
 import org.apache.http.client.methods.*;
 import uk.co.markfrimston.tasktree.*;
+import javax.swing.*;
 import javax.swing.tree.*;
 
 import static org.junit.Assert.*;
@@ -427,4 +428,326 @@ public class SyncTest
 		assertEquals("weh", getNodeLabel(1));
 		assertEquals("bar", getNodeLabel(0, 0));		
 	}
+	
+	@Test
+	public void testSyncKeepsUnchangedTasks() throws Exception
+	{
+		/*
+		 * A sync which brings down the same tree, without ids, should leave
+		 * the existing tasks and their expansion in the view alone
+		 */
+		tt.setUnsynchedChanges(false);
+		tt.setLastSyncTime(1000L);
+		tt.setLoadUrl(TEST_LOAD_URL);
+		tt.setSaveUrl(TEST_SAVE_URL);
+		tt.setMergeCommand("");
+		
+		DefaultMutableTreeNode foo = tt.addTask(tt.getRoot(), 0, "foo");
+		DefaultMutableTreeNode bar = tt.addTask(foo, 0, "bar");
+		DefaultMutableTreeNode weh = tt.addTask(tt.getRoot(), 1, "weh");
+		long fooId = tt.getTaskId(foo);
+		JTree view = new JTree(tt.getTreeModel());
+		TreePath fooPath = new TreePath(foo.getPath());
+		view.expandPath(fooPath);
+		
+		final String data = 
+			"<tasklist>\n"+
+			"	<tasks>\n"+
+			"		<task label=\"foo\">\n"+
+			"			<task label=\"bar\" />\n"+
+			"		</task>\n"+
+			"		<task label=\"weh\"/>\n"+
+			"	</tasks>\n"+
+			"</tasklist>\n";
+		
+		ms.setRequestHandler(new MockServer.RequestHandler(){
+			public void handleRequest(MockServer.Data request, MockServer.Data response)
+			{
+				try{
+					response.headers.put("Content-Type", "text/xml");
+					response.headers.put("Timestamp", "2000");
+					response.body = data.getBytes("Utf-8");
+				}catch(Exception e){
+					e.printStackTrace();
+				}
+			}
+		});
+		
+		tt.synchronise(NO_MC);
+		
+		assertSame(foo, tt.getRoot().getChildAt(0));
+		assertSame(bar, foo.getChildAt(0));
+		assertSame(weh, tt.getRoot().getChildAt(1));
+		assertEquals(2, tt.getRoot().getChildCount());
+		assertEquals(fooId, tt.getTaskId(foo));
+		assertTrue(view.isExpanded(fooPath));
+	}
+	
+	@Test
+	public void testCancelBeforeStart() throws Exception
+	{
+		/*
+		 * A cancel made before the sync gets going should stop it, but not
+		 * the next sync, which has its own cancellation
+		 */
+		tt.setUnsynchedChanges(false);
+		tt.setLastSyncTime(1000L);
+		tt.setLoadUrl(TEST_LOAD_URL);
+		tt.setSaveUrl(TEST_SAVE_URL);
+		tt.setMergeCommand("");
+		
+		loadRequested = false;
+		ms.setRequestHandler(new MockServer.RequestHandler(){
+			public void handleRequest(MockServer.Data request, MockServer.Data response)
+			{
+				try{
+					response.headers.put("Content-Type", "text/xml");
+					if(request.initialLine.split(" +")[1].endsWith("load"))
+					{
+						loadRequested = true;
+						response.headers.put("Timestamp", "1000");
+						response.body = "<tasklist><tasks /></tasklist>".getBytes("Utf-8");
+					}
+					else
+					{
+						response.body = request.body;
+					}
+				}catch(Exception e){
+					e.printStackTrace();
+				}
+			}
+		});
+		
+		SyncCancellation cancellation = new SyncCancellation();
+		cancellation.cancel();
+		boolean thrown = false;
+		try
+		{
+			tt.synchronise(NO_MC, null, cancellation);
+		}
+		catch(Exception e)
+		{
+			thrown = true;
+		}
+		assertTrue(thrown);
+		assertFalse(loadRequested);
+		
+		tt.synchronise(NO_MC);
+		assertTrue(loadRequested);
+	}
+	
+	@Test
+	public void testDeltaSync() throws Exception
+	{
+		/*
+		 * Once a sync has been made, a server which understands deltas should 
+		 * only be sent and send back the changes since then
+		 */
+		tt.setUnsynchedChanges(true);
+		tt.setLastSyncTime(1000L);
+		tt.setLoadUrl(TEST_LOAD_URL);
+		tt.setSaveUrl(TEST_SAVE_URL);
+		tt.setMergeCommand("");
+		
+		final DefaultMutableTreeNode foo = tt.addTask(tt.getRoot(), 0, "foo");
+		tt.addTask(foo, 0, "bar");
+		DefaultMutableTreeNode weh = tt.addTask(tt.getRoot(), 1, "weh");
+		
+		// first sync sends everything
+		final String[] saved = new String[1];
+		final boolean[] deltaRequested = new boolean[1];
+		final String[] loadResponse = new String[1];
+		final long[] remoteTime = new long[1];
+		final boolean[] deltaServer = new boolean[1];
+		ms.setRequestHandler(new MockServer.RequestHandler(){
+			public void handleRequest(MockServer.Data request, MockServer.Data response)
+			{
+				try
+				{
+					if(request.initialLine.split(" +")[1].endsWith("load"))
+					{
+						deltaRequested[0] = request.headers.containsKey("Sync-Protocol")
+							&& request.headers.get("Sync-Protocol").trim().equals("delta");
+						if(deltaServer[0]){
+							response.headers.put("Sync-Protocol", "delta");
+						}
+						response.headers.put("Content-Type", "text/xml");
+						response.headers.put("Timestamp", String.valueOf(remoteTime[0]));
+						response.body = loadResponse[0].getBytes("Utf-8");
+					}
+					else if(request.initialLine.split(" +")[1].endsWith("save"))
+					{
+						saved[0] = new String(request.body, "Utf-8");
+						response.headers.put("Content-Type", "text/xml");
+						response.body = request.body;
+					}
+				}
+				catch(Exception e){
+					e.printStackTrace();
+				}
+			}
+		});
+		
+		remoteTime[0] = 1000L;
+		loadResponse[0] = "<tasklist><tasks /></tasklist>";
+		tt.synchronise(NO_MC);
+		assertFalse(deltaRequested[0]);
+		assertTrue(saved[0].contains("<tasklist>"));
+		
+		// local change goes up on its own
+		tt.renameTask(weh, "weh2");
+		tt.setUnsynchedChanges(true);
+		deltaServer[0] = true;
+		remoteTime[0] = tt.getLastSyncTime();
+		loadResponse[0] = "<delta />";
+		tt.synchronise(NO_MC);
+		assertTrue(deltaRequested[0]);
+		assertTrue(saved[0].contains("<delta>"));
+		assertTrue(saved[0].contains("<rename id=\""+Long.toString(tt.getTaskId(weh), 36)
+				+"\" label=\"weh2\"/>"));
+		assertFalse(saved[0].contains("<task "));
+		assertFalse(tt.getUnsynchedChanges());
+		
+		// remote change comes down on its own, and isn't sent back
+		remoteTime[0] = tt.getLastSyncTime()+1000L;
+		loadResponse[0] = "<delta><rename id=\""+Long.toString(tt.getTaskId(foo), 36)
+				+"\" label=\"foo2\" /></delta>";
+		tt.synchronise(NO_MC);
+		assertEquals("foo2", getNodeLabel(0));
+		assertEquals("bar", getNodeLabel(0, 0));
+		assertEquals("weh2", getNodeLabel(1));
+		assertFalse(saved[0].contains("<rename"));
+	}
+	
+	@Test
+	public void testConditionalSync() throws Exception
+	{
+		/*
+		 * If the server's tasks are still the ones we last uploaded and we've 
+		 * made no changes, the server can say so and nothing is uploaded
+		 */
+		tt.setUnsynchedChanges(true);
+		tt.setLastSyncTime(1000L);
+		tt.setLoadUrl(TEST_LOAD_URL);
+		tt.setSaveUrl(TEST_SAVE_URL);
+		tt.setMergeCommand("");
+		tt.addTask(tt.getRoot(), 0, "foo");
+		
+		final String[] ifNoneMatch = new String[1];
+		ms.setRequestHandler(new MockServer.RequestHandler(){
+			public void handleRequest(MockServer.Data request, MockServer.Data response)
+			{
+				try
+				{
+					if(request.initialLine.split(" +")[1].endsWith("load"))
+					{
+						loadRequested = true;
+						ifNoneMatch[0] = request.headers.containsKey("If-None-Match") 
+							? request.headers.get("If-None-Match").trim() : null;
+						if("\"v1\"".equals(ifNoneMatch[0]))
+						{
+							response.initialLine = "HTTP/1.1 304 Not Modified";
+						}
+						else
+						{
+							response.headers.put("Content-Type", "text/xml");
+							response.headers.put("Timestamp", "1000");
+							response.body = "<tasklist><tasks /></tasklist>".getBytes("Utf-8");
+						}
+					}
+					else if(request.initialLine.split(" +")[1].endsWith("save"))
+					{
+						saveRequested = true;
+						response.headers.put("Content-Type", "text/xml");
+						response.headers.put("ETag", "\"v1\"");
+						response.body = request.body;
+					}
+				}
+				catch(Exception e){
+					e.printStackTrace();
+				}
+			}
+		});
+		
+		tt.synchronise(NO_MC);
+		assertNull(ifNoneMatch[0]);
+		assertEquals("\"v1\"", tt.getSyncETag());
+		
+		// the token is kept with the rest of the sync state
+		TaskTree reloaded = new TaskTree(TEST_CONFIG_PATH);
+		reloaded.loadConfig();
+		assertEquals("\"v1\"", reloaded.getSyncETag());
+		
+		long lastSyncTime = tt.getLastSyncTime();
+		loadRequested = false;
+		saveRequested = false;
+		tt.synchronise(NO_MC);
+		assertTrue(loadRequested);
+		assertEquals("\"v1\"", ifNoneMatch[0]);
+		assertFalse(saveRequested);
+		assertEquals(lastSyncTime, tt.getLastSyncTime().longValue());
+		assertEquals("foo", getNodeLabel(0));
+	}
+	
+	@Test
+	public void testCompressedSync() throws Exception
+	{
+		/*
+		 * A server which accepts gzip should be sent a compressed upload, and 
+		 * compressed responses should be read
+		 */
+		tt.setUnsynchedChanges(true);
+		tt.setLastSyncTime(1000L);
+		tt.setLoadUrl(TEST_LOAD_URL);
+		tt.setSaveUrl(TEST_SAVE_URL);
+		tt.setMergeCommand("");
+		for(int i=0; i<50; i++)
+		{
+			DefaultMutableTreeNode parent = tt.addTask(tt.getRoot(), i, "Project number "+i);
+			for(int j=0; j<10; j++){
+				tt.addTask(parent, j, "Task number "+j+" of project "+i);
+			}
+		}
+		
+		final String[] acceptEncoding = new String[1];
+		final String[] contentEncoding = new String[1];
+		final int[] uploadLength = new int[1];
+		ms.setRequestHandler(new MockServer.RequestHandler(){
+			public void handleRequest(MockServer.Data request, MockServer.Data response)
+			{
+				try
+				{
+					if(request.initialLine.split(" +")[1].endsWith("load"))
+					{
+						acceptEncoding[0] = request.headers.get("Accept-Encoding");
+						response.headers.put("Content-Type", "text/xml");
+						response.headers.put("Accept-Encoding", "gzip, deflate");
+						response.headers.put("Timestamp", "1000");
+						response.body = "<tasklist><tasks /></tasklist>".getBytes("Utf-8");
+						MockServer.encode(response, "gzip");
+					}
+					else if(request.initialLine.split(" +")[1].endsWith("save"))
+					{
+						contentEncoding[0] = request.headers.get("Content-Encoding");
+						byte[] body = MockServer.decode(request);
+						uploadLength[0] = body.length;
+						response.headers.put("Content-Type", "text/xml");
+						response.body = body;
+						MockServer.encode(response, "gzip");
+					}
+				}
+				catch(Exception e){
+					e.printStackTrace();
+				}
+			}
+		});
+		
+		ms.resetByteCounts();
+		tt.synchronise(NO_MC);
+		
+		assertTrue(acceptEncoding[0].contains("gzip"));
+		assertEquals("gzip", contentEncoding[0].trim());
+		assertTrue(ms.getRequestBodyBytes()*3 < uploadLength[0]);
+		assertFalse(tt.getUnsynchedChanges());
+	}
 }
@@ -0,0 +1,244 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package uk.co.markfrimston.tasktree.test;
+
+import org.junit.*;
+import java.io.*;
+import java.util.*;
+import uk.co.markfrimston.tasktree.*;
+import javax.swing.tree.*;
+
+import static org.junit.Assert.*;
+
+public class TaskDeltaTest
+{
+	protected static final String TEST_PATH = "./testdelta/";
+	
+	protected TaskTree tt;
+	protected DefaultMutableTreeNode foo;
+	protected DefaultMutableTreeNode bar;
+	protected DefaultMutableTreeNode weh;
+	
+	protected void cleanUpFiles()
+	{
+		File path = new File(TEST_PATH);
+		if(path.exists())
+		{
+			for(File file : path.listFiles())
+			{
+				file.delete();
+			}		
+		}
+		path.delete();
+	}
+	
+	// a copy of the version's tasks, keeping their ids
+	protected DefaultMutableTreeNode copyOf(TaskVersion version)
+	{
+		TaskNode node = new TaskNode(version.getLabel());
+		node.setId(version.getId());
+		for(int i=0; i<version.getChildCount(); i++){
+			node.add(copyOf(version.getChildAt(i)));
+		}
+		return node;
+	}
+	
+	protected String describe(TaskVersion version)
+	{
+		StringBuilder text = new StringBuilder();
+		text.append(version.getLabel()).append('#').append(version.getId()).append('(');
+		for(int i=0; i<version.getChildCount(); i++){
+			text.append(describe(version.getChildAt(i))).append(',');
+		}
+		return text.append(')').toString();
+	}
+	
+	protected List<DefaultMutableTreeNode> listTasks(TaskTree taskTree)
+	{
+		List<DefaultMutableTreeNode> tasks = new ArrayList<DefaultMutableTreeNode>();
+		Enumeration<?> e = taskTree.getRoot().preorderEnumeration();
+		while(e.hasMoreElements()){
+			tasks.add((DefaultMutableTreeNode)e.nextElement());
+		}
+		return tasks;
+	}
+	
+	protected void assertOp(TaskDelta.Op op, String type, DefaultMutableTreeNode node, 
+			DefaultMutableTreeNode parent, DefaultMutableTreeNode after, String label)
+	{
+		assertEquals(type, op.getType());
+		assertEquals(tt.getTaskId(node), op.getId());
+		assertEquals(parent==null ? 0L : tt.getTaskId(parent), op.getParent());
+		assertEquals(after==null ? 0L : tt.getTaskId(after), op.getAfter());
+		assertEquals(label, op.getLabel());
+	}
+	
+	/*
+	 * |- foo
+	 * |   '- bar
+	 * '- weh
+	 */
+	@Before
+	public void setUp()
+	{
+		cleanUpFiles();
+		tt = new TaskTree(TEST_PATH);
+		foo = tt.addTask(tt.getRoot(), 0, "foo");
+		bar = tt.addTask(foo, 0, "bar");
+		weh = tt.addTask(tt.getRoot(), 1, "weh");
+	}
+	
+	@After
+	public void tearDown()
+	{
+		cleanUpFiles();
+	}
+	
+	@Test
+	public void testNoChanges()
+	{
+		/*
+		 * A version compared with itself should give no edits
+		 */
+		assertTrue(TaskDelta.between(tt.getVersion(), tt.getVersion()).isEmpty());
+	}
+	
+	@Test
+	public void testBetween()
+	{
+		/*
+		 * Each edit should show up once, placed after its sibling, and 
+		 * removing a task shouldn't also list what was inside it
+		 */
+		TaskVersion from = tt.getVersion();
+		DefaultMutableTreeNode meh = tt.addTask(weh, 0, "meh");
+		tt.renameTask(weh, "weh2");
+		tt.moveTask(weh, tt.getRoot(), 0);
+		tt.removeTask(foo);
+		List<TaskDelta.Op> ops = TaskDelta.between(from, tt.getVersion()).getOps();
+		
+		assertEquals(4, ops.size());
+		assertOp(ops.get(0), TaskDelta.MOVE, weh, null, null, null);
+		assertOp(ops.get(1), TaskDelta.RENAME, weh, null, null, "weh2");
+		assertOp(ops.get(2), TaskDelta.ADD, meh, weh, null, "meh");
+		assertOp(ops.get(3), TaskDelta.REMOVE, foo, null, null, null);
+	}
+	
+	@Test
+	public void testApply() throws Exception
+	{
+		/*
+		 * A delta applied to a copy of the old tree should give the new one
+		 */
+		TaskTree copy = new TaskTree(TEST_PATH);
+		copy.setRoot(copyOf(tt.getVersion()));
+		TaskVersion from = tt.getVersion();
+		tt.addTask(foo, 1, "meh");
+		tt.moveTask(bar, weh, 0);
+		tt.renameTask(foo, "foo2");
+		
+		TaskDelta delta = TaskDelta.between(from, tt.getVersion());
+		delta = TaskDelta.fromDocument(delta.toDocument());
+		delta.applyTo(copy);
+		
+		assertEquals(describe(tt.getVersion()), describe(copy.getVersion()));
+	}
+	
+	@Test
+	public void testApplyUnknownTask() throws Exception
+	{
+		/*
+		 * If any edit refers to a task which isn't there, none of the edits 
+		 * should be kept
+		 */
+		String before = describe(tt.getVersion());
+		TaskDelta delta = new TaskDelta();
+		delta.add(new TaskDelta.Op(TaskDelta.RENAME, tt.getTaskId(foo), 0L, 0L, "foo2"));
+		delta.add(new TaskDelta.Op(TaskDelta.MOVE, 999L, 0L, 0L, null));
+		boolean thrown = false;
+		try
+		{
+			delta.applyTo(tt);
+		}
+		catch(Exception e)
+		{
+			thrown = true;
+		}
+		
+		assertTrue(thrown);
+		assertEquals(before, describe(tt.getVersion()));
+	}
+	
+	@Test
+	public void testRandomEdits() throws Exception
+	{
+		/*
+		 * Deltas between random trees, sent through xml, should always turn 
+		 * one into the other
+		 */
+		Random random = new Random(9L);
+		for(int round=0; round<100; round++)
+		{
+			tt = new TaskTree(TEST_PATH);
+			int count = 1+random.nextInt(40);
+			for(int i=0; i<count; i++)
+			{
+				List<DefaultMutableTreeNode> tasks = listTasks(tt);
+				DefaultMutableTreeNode parent = tasks.get(random.nextInt(tasks.size()));
+				tt.addTask(parent, random.nextInt(parent.getChildCount()+1), "task"+random.nextInt(10));
+			}
+			TaskVersion from = tt.getVersion();
+			TaskTree copy = new TaskTree(TEST_PATH);
+			copy.setRoot(copyOf(from));
+			
+			int edits = random.nextInt(20);
+			for(int i=0; i<edits; i++)
+			{
+				List<DefaultMutableTreeNode> tasks = listTasks(tt);
+				DefaultMutableTreeNode parent = tasks.get(random.nextInt(tasks.size()));
+				int op = random.nextInt(4);
+				if(op==0 || tasks.size() < 3)
+				{
+					tt.addTask(parent, random.nextInt(parent.getChildCount()+1), "new"+i);
+					continue;
+				}
+				DefaultMutableTreeNode task = tasks.get(1+random.nextInt(tasks.size()-1));
+				if(op==1){
+					tt.renameTask(task, "renamed"+i);
+				}else if(op==2){
+					tt.removeTask(task);
+				}else if(!parent.isNodeAncestor(task)){
+					int childCount = parent.getChildCount() - (task.getParent()==parent ? 1 : 0);
+					tt.moveTask(task, parent, random.nextInt(childCount+1));
+				}
+			}
+			
+			TaskDelta delta = TaskDelta.between(from, tt.getVersion());
+			TaskDelta.fromDocument(delta.toDocument()).applyTo(copy);
+			assertEquals(describe(tt.getVersion()), describe(copy.getVersion()));
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package uk.co.markfrimston.tasktree.test;
+
+import org.junit.*;
+import java.util.*;
+import uk.co.markfrimston.tasktree.*;
+import javax.swing.tree.*;
+
+import static org.junit.Assert.*;
+
+public class TaskNodeTest
+{
+	protected TaskNode parent;
+	protected List<TaskNode> expected;
+	protected Random random;
+	
+	// checks the parent's children against the expected list every way they
+	// can be reached
+	protected void checkChildren()
+	{
+		assertEquals(expected.size(), parent.getChildCount());
+		for(int i=0; i<expected.size(); i++)
+		{
+			assertSame(expected.get(i), parent.getChildAt(i));
+			assertEquals(i, parent.getIndex(expected.get(i)));
+			assertSame(parent, expected.get(i).getParent());
+		}
+		Enumeration<TreeNode> children = parent.children();
+		for(TaskNode child : expected)
+		{
+			assertTrue(children.hasMoreElements());
+			assertSame(child, children.nextElement());
+		}
+		assertFalse(children.hasMoreElements());
+		if(!expected.isEmpty())
+		{
+			assertSame(expected.get(0), parent.getFirstChild());
+			assertSame(expected.get(expected.size()-1), parent.getLastChild());
+		}
+	}
+	
+	protected TaskNode insertAt(int index)
+	{
+		TaskNode child = new TaskNode("task");
+		parent.insert(child, index);
+		expected.add(index, child);
+		return child;
+	}
+	
+	@Before
+	public void setUp()
+	{
+		parent = new TaskNode("parent");
+		expected = new ArrayList<TaskNode>();
+		random = new Random(1234L);
+	}
+	
+	@Test
+	public void testInsertAndIndex()
+	{
+		/*
+		 * Children inserted anywhere should keep their order and indices, 
+		 * before and after the list grows big enough to be kept in a treap
+		 */
+		for(int i=0; i<1000; i++)
+		{
+			insertAt(random.nextInt(expected.size()+1));
+			if(i % 50 == 0){
+				checkChildren();
+			}
+		}
+		checkChildren();
+	}
+	
+	@Test
+	public void testRemove()
+	{
+		/*
+		 * Removing children anywhere, by index or by node, should close up the
+		 * list
+		 */
+		for(int i=0; i<500; i++){
+			insertAt(i);
+		}
+		while(!expected.isEmpty())
+		{
+			int index = random.nextInt(expected.size());
+			if(random.nextBoolean()){
+				parent.remove(index);
+			}else{
+				parent.remove(expected.get(index));
+			}
+			TaskNode removed = expected.remove(index);
+			assertNull(removed.getParent());
+			assertEquals(-1, parent.getIndex(removed));
+			if(expected.size() % 25 == 0){
+				checkChildren();
+			}
+		}
+		checkChildren();
+	}
+	
+	@Test
+	public void testMove()
+	{
+		/*
+		 * Reinserting a child moves it, whether within the same parent or from
+		 * another one
+		 */
+		for(int i=0; i<200; i++){
+			insertAt(i);
+		}
+		TaskNode other = new TaskNode("other");
+		for(int i=0; i<100; i++)
+		{
+			int from = random.nextInt(expected.size());
+			TaskNode child = expected.remove(from);
+			int to = random.nextInt(expected.size()+1);
+			parent.insert(child, to);
+			expected.add(to, child);
+			
+			TaskNode stranger = new TaskNode("stranger");
+			other.add(stranger);
+			to = random.nextInt(expected.size()+1);
+			parent.insert(stranger, to);
+			expected.add(to, stranger);
+			assertEquals(0, other.getChildCount());
+		}
+		checkChildren();
+	}
+	
+	@Test
+	public void testOtherNodeType()
+	{
+		/*
+		 * A child which isn't a task node can't go in the treap, so the 
+		 * children go back to a plain list without losing their order
+		 */
+		for(int i=0; i<100; i++){
+			insertAt(i);
+		}
+		DefaultMutableTreeNode plain = new DefaultMutableTreeNode("plain");
+		parent.insert(plain, 50);
+		assertEquals(101, parent.getChildCount());
+		assertSame(plain, parent.getChildAt(50));
+		assertEquals(50, parent.getIndex(plain));
+		parent.remove(50);
+		checkChildren();
+		for(int i=0; i<100; i++){
+			insertAt(random.nextInt(expected.size()+1));
+		}
+		checkChildren();
+	}
+}
@@ -0,0 +1,239 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package uk.co.markfrimston.tasktree.test;
+
+import org.junit.*;
+import uk.co.markfrimston.tasktree.*;
+import javax.swing.tree.*;
+
+import static org.junit.Assert.*;
+
+public class TaskTreeDiffTest
+{
+	protected TaskTree tt;
+	protected DefaultMutableTreeNode foo;
+	protected DefaultMutableTreeNode bar;
+	protected DefaultMutableTreeNode weh;
+	
+	protected String getNodeLabel(int... nodeIndices)
+	{
+		DefaultMutableTreeNode currentNode = tt.getRoot();
+		for(int nodeIndex : nodeIndices)
+		{
+			currentNode = (DefaultMutableTreeNode)currentNode.getChildAt(nodeIndex);
+		}
+		return (String)currentNode.getUserObject();
+	}
+	
+	protected TaskNode task(TaskNode parent, String label, long id)
+	{
+		TaskNode node = new TaskNode(label);
+		node.setId(id);
+		parent.add(node);
+		return node;
+	}
+	
+	protected long id(DefaultMutableTreeNode node)
+	{
+		return tt.getTaskId(node);
+	}
+	
+	protected TaskTreeDiff apply(TaskNode newRoot)
+	{
+		TaskTreeDiff diff = new TaskTreeDiff(tt);
+		diff.apply(newRoot);
+		return diff;
+	}
+	
+	protected void assertCounts(TaskTreeDiff diff, int added, int moved, int removed, int renamed)
+	{
+		assertEquals("added", added, diff.getAdded());
+		assertEquals("moved", moved, diff.getMoved());
+		assertEquals("removed", removed, diff.getRemoved());
+		assertEquals("renamed", renamed, diff.getRenamed());
+	}
+	
+	/*
+	 * |- foo
+	 * |   '- bar
+	 * '- weh
+	 */
+	@Before
+	public void setUp()
+	{
+		tt = new TaskTree("./testdiff/");
+		foo = tt.addTask(tt.getRoot(), 0, "foo");
+		bar = tt.addTask(foo, 0, "bar");
+		weh = tt.addTask(tt.getRoot(), 1, "weh");
+	}
+	
+	@Test
+	public void testUnchangedWithoutIds()
+	{
+		/*
+		 * The same tree without ids should change nothing
+		 */
+		TaskNode newRoot = new TaskNode("root");
+		task(task(newRoot, "foo", 0L), "bar", 0L);
+		task(newRoot, "weh", 0L);
+		
+		assertCounts(apply(newRoot), 0, 0, 0, 0);
+		assertSame(foo, tt.getRoot().getChildAt(0));
+		assertSame(bar, foo.getChildAt(0));
+		assertSame(weh, tt.getRoot().getChildAt(1));
+	}
+	
+	@Test
+	public void testMoveById()
+	{
+		/*
+		 * A task found elsewhere by its id should be moved there, keeping its
+		 * node and its children
+		 */
+		TaskNode newRoot = new TaskNode("root");
+		TaskNode newWeh = task(newRoot, "weh", id(weh));
+		task(task(newWeh, "foo", id(foo)), "bar", id(bar));
+		
+		assertCounts(apply(newRoot), 0, 1, 0, 0);
+		assertEquals(1, tt.getRoot().getChildCount());
+		assertSame(weh, tt.getRoot().getChildAt(0));
+		assertSame(foo, weh.getChildAt(0));
+		assertSame(bar, foo.getChildAt(0));
+	}
+	
+	@Test
+	public void testRenameById()
+	{
+		/*
+		 * A task with a new label under the same id should be renamed
+		 */
+		TaskNode newRoot = new TaskNode("root");
+		task(task(newRoot, "foo2", id(foo)), "bar", id(bar));
+		task(newRoot, "weh", id(weh));
+		
+		assertCounts(apply(newRoot), 0, 0, 0, 1);
+		assertSame(foo, tt.getRoot().getChildAt(0));
+		assertEquals("foo2", getNodeLabel(0));
+	}
+	
+	@Test
+	public void testReorderWithoutIds()
+	{
+		/*
+		 * Siblings swapped without ids should be matched by content, so only
+		 * one of them moves
+		 */
+		TaskNode newRoot = new TaskNode("root");
+		task(newRoot, "weh", 0L);
+		task(task(newRoot, "foo", 0L), "bar", 0L);
+		
+		assertCounts(apply(newRoot), 0, 1, 0, 0);
+		assertSame(weh, tt.getRoot().getChildAt(0));
+		assertSame(foo, tt.getRoot().getChildAt(1));
+		assertSame(bar, foo.getChildAt(0));
+	}
+	
+	@Test
+	public void testAddAndRemove()
+	{
+		/*
+		 * New tasks should be added keeping their ids, and missing ones 
+		 * removed
+		 */
+		TaskNode newRoot = new TaskNode("root");
+		task(newRoot, "foo", id(foo));
+		task(newRoot, "meh", 123456L);
+		task(newRoot, "weh", id(weh));
+		
+		assertCounts(apply(newRoot), 1, 0, 1, 0);
+		assertEquals(3, tt.getRoot().getChildCount());
+		assertEquals(0, foo.getChildCount());
+		assertEquals("meh", getNodeLabel(1));
+		assertEquals(123456L, id((DefaultMutableTreeNode)tt.getRoot().getChildAt(1)));
+		assertNull(tt.getTask(id(bar)));
+	}
+	
+	@Test
+	public void testRepeatedId()
+	{
+		/*
+		 * A repeated incoming id should only claim its task once, and the 
+		 * other copy should be added with a new id
+		 */
+		TaskNode newRoot = new TaskNode("root");
+		task(task(newRoot, "foo", id(foo)), "bar", id(bar));
+		task(newRoot, "weh", id(weh));
+		task(newRoot, "weh", id(weh));
+		
+		assertCounts(apply(newRoot), 1, 0, 0, 0);
+		assertEquals(3, tt.getRoot().getChildCount());
+		assertSame(weh, tt.getRoot().getChildAt(1));
+		DefaultMutableTreeNode copy = (DefaultMutableTreeNode)tt.getRoot().getChildAt(2);
+		assertEquals("weh", copy.getUserObject());
+		assertTrue(id(copy)!=0L && id(copy)!=id(weh));
+		assertSame(copy, tt.getTask(id(copy)));
+	}
+	
+	@Test
+	public void testRenameWithHashCollision()
+	{
+		/*
+		 * "Aa" and "BB" have the same hash code, but renaming one to the other
+		 * without ids should still be picked up, at the top and further down
+		 */
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		tt.renameTask(bar, "Aa");
+		tt.renameTask(weh, "Aa");
+		TaskNode newRoot = new TaskNode("root");
+		task(task(newRoot, "foo", 0L), "BB", 0L);
+		task(newRoot, "BB", 0L);
+		
+		assertCounts(apply(newRoot), 0, 0, 0, 2);
+		assertSame(bar, foo.getChildAt(0));
+		assertSame(weh, tt.getRoot().getChildAt(1));
+		assertEquals("BB", getNodeLabel(0, 0));
+		assertEquals("BB", getNodeLabel(1));
+	}
+	
+	@Test
+	public void testReorderWithHashCollision()
+	{
+		/*
+		 * Siblings whose hashes collide should still be matched with the task
+		 * that has their label
+		 */
+		tt.removeTask(bar);
+		tt.renameTask(foo, "Aa");
+		tt.renameTask(weh, "BB");
+		TaskNode newRoot = new TaskNode("root");
+		task(newRoot, "BB", 0L);
+		task(newRoot, "Aa", 0L);
+		
+		assertCounts(apply(newRoot), 0, 1, 0, 0);
+		assertSame(weh, tt.getRoot().getChildAt(0));
+		assertSame(foo, tt.getRoot().getChildAt(1));
+	}
+}
@@ -0,0 +1,166 @@
+/*
+Copyright (c) 2010 Mark Frimston
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package uk.co.markfrimston.tasktree.test;
+
+import org.junit.*;
+import java.util.*;
+import uk.co.markfrimston.tasktree.*;
+
+import static org.junit.Assert.*;
+
+public class TaskVersionTest
+{
+	protected Random random;
+	
+	protected void checkChildren(List<String> expected, TaskVersion parent)
+	{
+		assertEquals(expected.size(), parent.getChildCount());
+		for(int i=0; i<expected.size(); i++){
+			assertEquals(expected.get(i), parent.getChildAt(i).getLabel());
+		}
+	}
+	
+	protected TaskVersion version(String label, TaskVersion... children)
+	{
+		TaskNode node = new TaskNode(label);
+		for(TaskVersion child : children){
+			node.add(copyOf(child));
+		}
+		return TaskVersion.of(node);
+	}
+	
+	protected TaskNode copyOf(TaskVersion version)
+	{
+		TaskNode node = new TaskNode(version.getLabel());
+		for(int i=0; i<version.getChildCount(); i++){
+			node.add(copyOf(version.getChildAt(i)));
+		}
+		return node;
+	}
+	
+	@Before
+	public void setUp()
+	{
+		random = new Random(4321L);
+	}
+	
+	@Test
+	public void testEdits()
+	{
+		/*
+		 * Inserts, removes and renames anywhere in a list should give the right
+		 * children, as the list grows past the size kept in an array and 
+		 * shrinks back again
+		 */
+		TaskVersion root = version("root");
+		List<String> expected = new ArrayList<String>();
+		for(int round=0; round<3000; round++)
+		{
+			int op = random.nextInt(10);
+			int size = expected.size();
+			if(round >= 2000 && size > 0 && op < 7)
+			{
+				int index = random.nextInt(size);
+				root = root.remove(new int[]{ index });
+				expected.remove(index);
+			}
+			else if(size > 0 && op==0)
+			{
+				int index = random.nextInt(size);
+				root = root.rename(new int[]{ index }, "renamed"+round);
+				expected.set(index, "renamed"+round);
+			}
+			else
+			{
+				int index = random.nextInt(size+1);
+				root = root.insert(new int[0], index, version("task"+round));
+				expected.add(index, "task"+round);
+			}
+			if(round % 100 == 0){
+				checkChildren(expected, root);
+			}
+		}
+		checkChildren(expected, root);
+	}
+	
+	@Test
+	public void testOldVersionsUnchanged()
+	{
+		/*
+		 * Edits should leave the versions they were made from as they were
+		 */
+		TaskVersion root = version("root");
+		List<TaskVersion> versions = new ArrayList<TaskVersion>();
+		List<List<String>> expected = new ArrayList<List<String>>();
+		List<String> labels = new ArrayList<String>();
+		for(int i=0; i<300; i++)
+		{
+			int index = random.nextInt(labels.size()+1);
+			if(labels.size() > 0 && random.nextInt(3)==0)
+			{
+				index = random.nextInt(labels.size());
+				root = root.remove(new int[]{ index });
+				labels.remove(index);
+			}
+			else
+			{
+				root = root.insert(new int[0], index, version("task"+i));
+				labels.add(index, "task"+i);
+			}
+			versions.add(root);
+			expected.add(new ArrayList<String>(labels));
+		}
+		for(int i=0; i<versions.size(); i++){
+			checkChildren(expected.get(i), versions.get(i));
+		}
+	}
+	
+	@Test
+	public void testNestedEdits()
+	{
+		/*
+		 * Edits below a large list should copy the path down to them and leave
+		 * the rest of the list alone
+		 */
+		TaskVersion root = version("root");
+		for(int i=0; i<200; i++){
+			root = root.insert(new int[0], i, version("task"+i));
+		}
+		TaskVersion before = root;
+		root = root.insert(new int[]{ 150 }, 0, version("inner"));
+		root = root.rename(new int[]{ 150, 0 }, "inner2");
+		
+		assertEquals("inner2", root.getDescendant(new int[]{ 150, 0 }).getLabel());
+		assertEquals(0, before.getChildAt(150).getChildCount());
+		for(int i=0; i<200; i++)
+		{
+			assertEquals("task"+i, root.getChildAt(i).getLabel());
+			if(i!=150){
+				assertSame(before.getChildAt(i), root.getChildAt(i));
+			}
+		}
+	}
+}